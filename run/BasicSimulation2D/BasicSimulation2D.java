@@ -133,6 +133,7 @@ public class BasicSimulation2D {
         double k_cell = parameters.k_cell;
         double k_sticking = parameters.k_sticking;
         double twist = parameters.twist;
+        String moverType = parameters.mover;
         double push = parameters.push;
         double asymmetry = parameters.asymmetry;
         double asymmetry_scale = parameters.asymmetry_scale;
@@ -230,7 +231,7 @@ public class BasicSimulation2D {
          */
         final int LOG_INTERVAL = 100; // logs data every 100 timesteps
         BasicTicker ticker = new BasicTicker(sim, bac, bacteriaAll, LOG_INTERVAL, bacRng, el_stdv, el_mean,
-                div_stdv, div_mean);
+                div_stdv, div_mean, moverType);
         ticker.setGrowth(true); // whether to enable growth in the ticker or not; if false nothing can grow
         sim.setTicker(ticker);
 
@@ -3,6 +3,7 @@ package BasicSimulation2D;
 import bsim.BSim;
 import bsim.BSimTicker;
 import bsim.capsule.BSimCapsuleBacterium;
+import bsim.capsule.FireMover;
 import bsim.capsule.Mover;
 import bsim.capsule.RelaxationMoverGrid;
 import bsim.winter2021.Bacterium;
@@ -36,6 +37,14 @@ public class BasicTicker extends BSimTicker {
 
     public BasicTicker(BSim sim, ArrayList<Bacterium> bac, ArrayList<BSimCapsuleBacterium> bacteriaAll, int LOG_INTERVAL,
                        Random bacRng, double growth_stdv, double growth_mean, double length_stdv, double length_mean) {
+        this(sim, bac, bacteriaAll, LOG_INTERVAL, bacRng, growth_stdv, growth_mean, length_stdv, length_mean, "relax");
+    }
+
+    // moverType selects the contact solver: "relax" integrates the relaxation in time (RelaxationMoverGrid),
+    // "fire" minimises the contact energy directly (FireMover)
+    public BasicTicker(BSim sim, ArrayList<Bacterium> bac, ArrayList<BSimCapsuleBacterium> bacteriaAll, int LOG_INTERVAL,
+                       Random bacRng, double growth_stdv, double growth_mean, double length_stdv, double length_mean,
+                       String moverType) {
         this.sim = sim;
         this.LOG_INTERVAL = LOG_INTERVAL;
         this.bacRng = bacRng; //random number generator
@@ -47,7 +56,16 @@ public class BasicTicker extends BSimTicker {
         this.bacteriaAll = bacteriaAll;
         bac_born = new ArrayList();
         bac_dead = new ArrayList();
-        mover = new RelaxationMoverGrid(bacteriaAll, sim);
+        switch (moverType) {
+            case "relax":
+                mover = new RelaxationMoverGrid(bacteriaAll, sim);
+                break;
+            case "fire":
+                mover = new FireMover(bacteriaAll, sim);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mover type: " + moverType);
+        }
     }
 
     /** Sets the flag for growth. **/
@@ -87,6 +87,10 @@ public class Parameters {
     @Parameter(names="-k_stick",arity=1,description = "side-to-side attraction")
     public static double k_sticking = Bacterium.k_sticking;
 
+    // contact solver
+    @Parameter(names="-mover",arity=1,description = "contact solver: relax (time integration) or fire (energy minimisation)")
+    public String mover = "relax";
+
     @Parameter(names="-k_cell",arity=1,description = "k_cell")
     public static double k_cell = Bacterium.k_cell;
     @Parameter(names="-twist",arity=1,description = "twist")
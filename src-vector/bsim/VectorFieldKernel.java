@@ -0,0 +1,96 @@
+package bsim;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * FieldKernel with explicit SIMD, using the JDK Vector API (jdk.incubator.vector, JDK 16 or later) at the
+ * preferred vector width of the machine (e.g. 4 doubles with AVX2, 8 with AVX-512).
+ *
+ * This is kept apart from src, which builds for Java 8: compile it with
+ * 	javac --release 17 --add-modules jdk.incubator.vector -cp &lt;bsim classes&gt; src-vector/bsim/*.java
+ * (or the compile.module.bsim-bristol.vector target of bsim-build-tree.xml), and run with --add-modules jdk.incubator.vector.
+ * FieldKernel picks it up when it is available.
+ *
+ * Each lane computes the same expression, in the same order, as the scalar loop, so the results are identical,
+ * except for sum(), which adds lanewise before adding the lanes.
+ */
+class VectorFieldKernel extends FieldKernel {
+
+	private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+
+	String name() {
+		return "Vector API, " + S.length() + " doubles";
+	}
+
+	void stencil7(double[] before, double[] after, int from, int to, double keep, double c,
+			double wYA, int oYA, double wYB, int oYB, double wZA, int oZA, double wZB, int oZB, double factor) {
+		int b = from;
+		for(int end=from+S.loopBound(to-from);b<end;b+=S.length()) {
+			DoubleVector x = DoubleVector.fromArray(S, before, b);
+			DoubleVector sides = DoubleVector.fromArray(S, before, b-1).add(DoubleVector.fromArray(S, before, b+1));
+			x.mul(keep).add(sides.mul(c))
+				.add(DoubleVector.fromArray(S, before, b+oYA).mul(wYA))
+				.add(DoubleVector.fromArray(S, before, b+oYB).mul(wYB))
+				.add(DoubleVector.fromArray(S, before, b+oZA).mul(wZA))
+				.add(DoubleVector.fromArray(S, before, b+oZB).mul(wZB))
+				.mul(factor).intoArray(after, b);
+		}
+		for(;b<to;b++) {
+			after[b] = (keep*before[b] + c*(before[b-1] + before[b+1])
+					+ wYA*before[b+oYA] + wYB*before[b+oYB] + wZA*before[b+oZA] + wZB*before[b+oZB])*factor;
+		}
+	}
+
+	void stencil5(double[] before, double[] after, int from, int to, double keep, double c,
+			double wYA, int oYA, double wYB, int oYB, double factor) {
+		int b = from;
+		for(int end=from+S.loopBound(to-from);b<end;b+=S.length()) {
+			DoubleVector x = DoubleVector.fromArray(S, before, b);
+			DoubleVector sides = DoubleVector.fromArray(S, before, b-1).add(DoubleVector.fromArray(S, before, b+1));
+			x.mul(keep).add(sides.mul(c))
+				.add(DoubleVector.fromArray(S, before, b+oYA).mul(wYA))
+				.add(DoubleVector.fromArray(S, before, b+oYB).mul(wYB))
+				.mul(factor).intoArray(after, b);
+		}
+		for(;b<to;b++) {
+			after[b] = (keep*before[b] + c*(before[b-1] + before[b+1])
+					+ wYA*before[b+oYA] + wYB*before[b+oYB])*factor;
+		}
+	}
+
+	void scale(double[] q, int from, int to, double factor) {
+		int b = from;
+		for(int end=from+S.loopBound(to-from);b<end;b+=S.length()) {
+			DoubleVector.fromArray(S, q, b).mul(factor).intoArray(q, b);
+		}
+		for(;b<to;b++) q[b] *= factor;
+	}
+
+	double sum(double[] q, int from, int to) {
+		DoubleVector t = DoubleVector.zero(S);
+		int b = from;
+		for(int end=from+S.loopBound(to-from);b<end;b+=S.length()) {
+			t = t.add(DoubleVector.fromArray(S, q, b));
+		}
+		double s = t.reduceLanes(VectorOperators.ADD);
+		for(;b<to;b++) s += q[b];
+		return s;
+	}
+
+	void addClamped(double[] q, int from, int to, double add) {
+		DoubleVector zero = DoubleVector.zero(S);
+		int b = from;
+		for(int end=from+S.loopBound(to-from);b<end;b+=S.length()) {
+			DoubleVector x = DoubleVector.fromArray(S, q, b).add(add);
+			VectorMask<Double> negative = x.lt(0.0);
+			x.blend(zero, negative).intoArray(q, b);
+		}
+		for(;b<to;b++) {
+			q[b] += add;
+			if(q[b] < 0) q[b] = 0;
+		}
+	}
+}
@@ -1,5 +1,9 @@
 package bsim;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import javax.vecmath.Vector3d;
 
 /**
@@ -19,8 +23,49 @@ public class BSimChemicalField {
 	protected double diffusivity; // (microns)^2/s
 	/** Fraction of chemical decaying per second, quantity(t+dt) = quantity(t)*(1-decayRate*dt). */
 	protected double decayRate; // 1/seconds 
-	/** The quantity of chemical in the box (i,j,k). */
-	protected double[][][] quantity; // number of molecules
+	/** The quantity of chemical in each box; box (i,j,k) is quantity[index(i,j,k)], with x varying fastest. */
+	protected double[] quantity; // number of molecules
+	/** Buffer for the updated quantities in diffuse(), which is then swapped with quantity. */
+	double[] next;
+	/** Numerical schemes for diffuse() and update(). */
+	public enum Solver {
+		/** Explicit (forward Euler) steps: stable while D*dt*(1/dx^2 + 1/dy^2 + 1/dz^2) is at most 1/4. */
+		EXPLICIT,
+		/**
+		 * Alternating direction implicit steps (see adiStep()): stable for any timestep, and second order in time.
+		 * Very long timesteps only slowly damp variations over a few boxes, which may then oscillate.
+		 */
+		ADI,
+		/**
+		 * Exact steps in Fourier space (see spectralStep()), for any timestep, when all the borders are periodic;
+		 * decay is exact too, a factor exp(-decayRate*dt) per update().
+		 */
+		SPECTRAL
+	}
+	private Solver solver = Solver.EXPLICIT;
+	/* Factorised line systems for adiStep(), along x, y and z */
+	private LineSystem[] lineSystems;
+	/* Transforms along x, y and z, and imaginary parts, for spectralStep() */
+	private FFT[] transforms;
+	private double[] imaginary;
+	/** Number of neighbouring lines solved together by adiStep(). */
+	private static final int ADI_BLOCK = 256;
+	/** Optional thread pool for parallel updates; null for sequential updates. */
+	private ForkJoinPool pool;
+	/** Approximate number of boxes updated by each task of a parallel update. */
+	private static final int BOXES_PER_TASK = 16384;
+	/* Active tiles (see setActiveTiles()): size of the tiles and number of them along each axis, or null */
+	private int[] tile, tiles;
+	private double tileEpsilon;
+	/* Per tile: whether it holds more than tileEpsilon (or was written to), was updated by the current and
+	 * the previous step, and the tiles updated by the current step */
+	private boolean[] live, updated, updatedBefore;
+	private int[] updateList;
+	private int updatedTiles;
+	/* Borders and stencil weights for the current update; see computeCoefficients() */
+	boolean[] solid;
+	double cX, cY, cZ;
+	double leakXAbove, leakXBelow, leakYAbove, leakYBelow, leakZAbove, leakZBelow;
 	/** sim.getBound(). */
 	protected Vector3d bound;
 	/** Number of boxes in each dimension. */
@@ -39,6 +84,15 @@ public class BSimChemicalField {
 	 * @param decayRate Decay rate of the chemical (molecules/s).
 	 */
 	public BSimChemicalField(BSim sim, int[] boxes, double diffusivity, double decayRate) {
+		this(sim, boxes, diffusivity, decayRate, new double[boxes[0]*boxes[1]*boxes[2]]);
+		this.next = new double[quantity.length];
+	}
+	
+	/**
+	 * Constructor for a field whose quantities are stored in the given array, which the owner of the array
+	 * diffuses (see BSimChemicalFieldSet).
+	 */
+	BSimChemicalField(BSim sim, int[] boxes, double diffusivity, double decayRate, double[] quantity) {
 		this.sim = sim;
 		this.bound = sim.getBound();
 		this.boxes = boxes;
@@ -46,11 +100,16 @@ public class BSimChemicalField {
 		box[1] = bound.y/(double)boxes[1];
 		box[2] = bound.z/(double)boxes[2];
 		boxVolume = box[0]*box[1]*box[2];
-		this.quantity = new double[boxes[0]][boxes[1]][boxes[2]]; 
+		this.quantity = quantity;
 		this.diffusivity = diffusivity;
 		this.decayRate = decayRate;
 	}	
 	
+	/** Returns the position of the box (x,y,z) in quantity[]. */
+	protected int index(int x, int y, int z) {
+		return x + boxes[0]*(y + boxes[1]*z);
+	}
+	
 	/** Return the number of boxes in (x,y,z) directions. */
 	public int[] getBoxes() { return boxes; }
 	/** Return the size of each box (x,y,z) in microns. */
@@ -77,108 +136,375 @@ public class BSimChemicalField {
 	
 	/** Adds a quantity of chemical to the box containing position v. */
 	public void addQuantity(Vector3d v, double q) {
-		int[] b = boxCoords(v);
-		addQuantity(b[0],b[1],b[2],q);
+		addQuantity(boxCoord(v.x, 0), boxCoord(v.y, 1), boxCoord(v.z, 2), q);
 	}
 	/** Adds a quantity of chemical to the box (x,y,z). */
 	public void addQuantity(int x, int y, int z, double q) {
-		quantity[x][y][z] += q;
-		if(quantity[x][y][z] < 0) quantity[x][y][z] = 0;
+		markLive(x,y,z);
+		int b = index(x,y,z);
+		quantity[b] += q;
+		if(quantity[b] < 0) quantity[b] = 0;
+	}
+	
+	/** Adds a quantity of chemical to every box. */
+	public void addQuantity(double q) {
+		markLive();
+		FieldKernel.INSTANCE.addClamped(quantity, 0, quantity.length, q);
 	}
 	
 	/** Sets the concentration of the box containing position v. */
 	public void setConc(Vector3d v, double c) {
-		int[] b = boxCoords(v);
-		setConc(b[0],b[1],b[2],c);
+		setConc(boxCoord(v.x, 0), boxCoord(v.y, 1), boxCoord(v.z, 2), c);
 	}
 	/** Sets the concentration of the box (x,y,z). */
 	public void setConc(int x, int y, int z, double c) {
-		quantity[x][y][z] = c*boxVolume;
+		markLive(x,y,z);
+		quantity[index(x,y,z)] = c*boxVolume;
 	}
 	/** Sets the concentration of the field */
-	public void setConc(double c) {		
-		for(int i=0;i<boxes[0];i++)
-			for(int j=0;j<boxes[1];j++)
-				for(int k=0;k<boxes[2];k++) quantity[i][j][k] = c*boxVolume;
+	public void setConc(double c) {
+		markLive();
+		Arrays.fill(quantity, c*boxVolume);
 	}
 
 	/** Sets the concentration of the field; converts concentration in mM to molecules/um3 */
 	public void setConc_mM(double c) {
-		for(int i=0;i<boxes[0];i++)
-			for(int j=0;j<boxes[1];j++)
-				for(int k=0;k<boxes[2];k++) quantity[i][j][k] = c*boxVolume*6e5;
+		markLive();
+		Arrays.fill(quantity, c*boxVolume*6e5);
 	}
 	
 	/** Gets the concentration of the field at the position v in molecules/(micron)^3. */
 	public double getConc(Vector3d v) {
-		int[] b = boxCoords(v);
-		return getConc(b[0],b[1],b[2]);
+		return quantity[boxIndex(v)]/boxVolume;
 	}
 	/** Gets the concentration of the field at the position v in mM. */
 	public double getConc_mM(Vector3d v) {
-		int[] b = boxCoords(v);
-		return getConc_mM(b[0],b[1],b[2]);
+		return quantity[boxIndex(v)]/boxVolume/6e5;
 	}
 
 	/** Gets the concentration of the field in the box (x,y,z) in molecules/(micron)^3. */
 	public double getConc(int i, int j, int k) {
-		return quantity[i][j][k]/boxVolume;
+		return quantity[index(i,j,k)]/boxVolume;
 	}
 
 	/** Gets the concentration of the field in the box (x,y,z) in mM. */
-	public double getConc_mM(int i, int j, int k) { return quantity[i][j][k]/boxVolume/6e5; }
+	public double getConc_mM(int i, int j, int k) { return quantity[index(i,j,k)]/boxVolume/6e5; }
 	
 	/** Returns the total quantity of chemical in the field. */
 	public double totalQuantity() {
-		double t = 0;
-		for(int i=0;i<boxes[0];i++)
-			for(int j=0;j<boxes[1];j++)
-				for(int k=0;k<boxes[2];k++) t += quantity[i][j][k];
-		return t;
+		return FieldKernel.INSTANCE.sum(quantity, 0, quantity.length);
 	}
 	
 	/** Returns the integer coordinates of the box containing the position v. */ 
 	public int[] boxCoords(Vector3d v) {
-		/* Check the bounds are valid */
-		int x = (int)(v.x/box[0]);
-		int y = (int)(v.y/box[1]);
-		int z = (int)(v.z/box[2]);
-		x = (x >= boxes[0] ? boxes[0]-1 : x);
-		y = (y >= boxes[1] ? boxes[1]-1 : y);
-		z = (z >= boxes[2] ? boxes[2]-1 : z);
-		if (x < 0) x = 0;
-		if (y < 0) y = 0;
-		if (z < 0) z = 0;
-		return new int[] {x, y, z};	
+		return new int[] {boxCoord(v.x, 0), boxCoord(v.y, 1), boxCoord(v.z, 2)};	
+	}
+	
+	/**
+	 * Returns the position in quantity[] of the box containing the position v, as boxCoords() without allocating,
+	 * e.g. to look a position up once and then read or add to the box repeatedly (see BSimFieldCoupling).
+	 */
+	public int boxIndex(Vector3d v) {
+		return index(boxCoord(v.x, 0), boxCoord(v.y, 1), boxCoord(v.z, 2));
+	}
+	
+	/** The coordinate along axis a of the box containing position p along that axis, clamped to the field. */
+	private int boxCoord(double p, int a) {
+		int i = (int)(p/box[a]);
+		i = (i >= boxes[a] ? boxes[a]-1 : i);
+		return (i < 0) ? 0 : i;
 	}
 	
 	/**
 	 * Update the chemical field by diffusing and decaying the chemical present.
+	 * Both happen in the same pass over the field, with the same result as diffuse() followed by decay()
+	 * (so a subclass that overrides either of those should override this too).
 	 */
 	public void update() {
-		diffuse();
-		decay();
+		update(sim.getDt());
+	}
+	
+	/**
+	 * Update the chemical field over a timestep dt other than that of the simulation, e.g. one of several
+	 * sub-steps per tick (see BSimFieldScheduler).
+	 */
+	public void update(double dt) {
+		if(solver == Solver.SPECTRAL) step(Math.exp(-decayRate*dt), dt);
+		else step(1 - decayRate*dt, dt);
 	}
 	
 	/**
 	 * Decay the chemical present in the field.
 	 */
 	public void decay() {
-		for(int i=0;i<boxes[0];i++)
-			for(int j=0;j<boxes[1];j++)
-				for(int k=0;k<boxes[2];k++) quantity[i][j][k] *= (1 - decayRate*sim.getDt());
+		decay(sim.getDt());
+	}
+	
+	/** Decay the chemical present in the field over the timestep dt. */
+	public void decay(double dt) {
+		double factor = 1 - decayRate*dt;
+		if(tile == null) {
+			FieldKernel.INSTANCE.scale(quantity, 0, quantity.length, factor);
+		} else {
+			// Only the live tiles; the others are left as they are, as by update()
+			for(int t=0;t<live.length;t++) {
+				if(!live[t]) continue;
+				int[] r = tileRange(t);
+				for(int k=r[4];k<r[5];k++) {
+					for(int j=r[2];j<r[3];j++) {
+						int line = boxes[0]*(j + boxes[1]*k);
+						FieldKernel.INSTANCE.scale(quantity, line + r[0], line + r[1], factor);
+					}
+				}
+			}
+		}
 	}	
 	
 	/**
 	 * Diffuse the chemical present in the field.
+	 * 
+	 * Every box is updated from the quantities before the step (into a second buffer, which then becomes the
+	 * field), one line of boxes along x at a time. The y and z neighbours of a line, or their absence at a solid
+	 * border, are worked out once per line, so the update of all but the two end boxes of a line is a
+	 * branch-free stencil; the end boxes handle the x borders.
 	 */
 	public void diffuse() {
-		double[][][] before = quantity;
-		/* Index of the box in positive (negative) .. direction, taking account of the boundary conditions */
-		int xAbove, xBelow, yAbove, yBelow, zAbove, zBelow;
-		/* Quantity of chemical leaving the box in the positive (negative) .. direction */
-		double qxAbove, qxBelow, qyAbove, qyBelow, qzAbove, qzBelow;
-		/* Flags for leakiness at borders */
+		diffuse(sim.getDt());
+	}
+	
+	/** Diffuse the chemical present in the field over the timestep dt. */
+	public void diffuse(double dt) {
+		step(1.0, dt);
+	}
+	
+	/**
+	 * Returns the longest timestep for which update() is stable with the current solver and borders:
+	 * for EXPLICIT, no box may give away more than it holds, i.e.
+	 * 	dt*(4*D*(1/dx^2 + 1/dy^2 + 1/dz^2) + leaks) &lt;= 1, and dt*decayRate &lt;= 1,
+	 * counting only the axes with more than one box; ADI and SPECTRAL are stable for any timestep.
+	 */
+	public double getStableDt() {
+		if(solver != Solver.EXPLICIT) return Double.POSITIVE_INFINITY;
+		boolean[] solid = sim.getSolid();
+		boolean[] leaky = sim.getLeaky();
+		double[] leakyRate = sim.getLeakyRate();
+		double rate = 0;
+		for(int a=0;a<3;a++) {
+			double norm = 1/Math.pow(box[a],2);
+			if(boxes[a] > 1) rate += 4*diffusivity*norm;
+			if(solid[a]) rate += norm*((leaky[2*a] ? leakyRate[2*a] : 0) + (leaky[2*a+1] ? leakyRate[2*a+1] : 0));
+		}
+		double stable = (rate > 0) ? 1/rate : Double.POSITIVE_INFINITY;
+		return (decayRate > 0) ? Math.min(stable, 1/decayRate) : stable;
+	}
+	
+	/**
+	 * Selects the scheme for diffusion: EXPLICIT (the default), or ADI, which is stable for any timestep, however
+	 * fine the boxes, and so suits fast diffusing molecules. Both honour the solid, periodic and leaky borders.
+	 * SPECTRAL is exact for any timestep, but only for fields with periodic borders on all sides.
+	 */
+	public void setSolver(Solver solver) {
+		this.solver = solver;
+		// The other solvers update the whole field, so the tiles must start afresh
+		markLive();
+		if(updatedBefore != null) Arrays.fill(updatedBefore, true);
+	}
+	
+	public Solver getSolver() {
+		return solver;
+	}
+	
+	/**
+	 * Enables parallel updates on the given number of threads; threads <= 0 disables it.
+	 * The lines of boxes are split into fixed slabs (of z, or for a single layer of boxes, of y), which are
+	 * updated concurrently. Each box is computed exactly as in a sequential update, so the results are the same.
+	 * Call shutdown() (or setThreads(0)) to release the threads when the field is no longer needed.
+	 */
+	public void setThreads(int threads) {
+		if(pool != null) pool.shutdown();
+		pool = (threads > 0) ? new ForkJoinPool(threads) : null;
+	}
+	
+	/** Returns the number of threads used to update the field, 0 if it is updated sequentially. */
+	public int getThreads() {
+		return (pool == null) ? 0 : pool.getParallelism();
+	}
+	
+	/** Releases the threads used for parallel updates; the field reverts to sequential updates. */
+	public void shutdown() {
+		setThreads(0);
+	}
+	
+	/**
+	 * Enables active tiles, for fields that are mostly empty, e.g. early on when the chemical spreads from a few
+	 * sources or an inflow: the field is split into tiles of (up to) tileSize boxes along each axis, and the
+	 * explicit update skips the tiles which, like all their neighbouring tiles, hold no more than epsilon
+	 * molecules in any box. Their content is left as it is. A tile becomes active again when chemical is added
+	 * to it (or set) or diffuses into it from a neighbour, so with epsilon 0 the results are exactly those of
+	 * the full update, at a cost in proportion to the occupied part of the field.
+	 * tileSize <= 0 disables active tiles. The ADI solver always updates the whole field.
+	 * Subclasses that write to quantity[] directly should call markLive() for the boxes they change.
+	 */
+	public void setActiveTiles(int tileSize, double epsilon) {
+		if(tileSize <= 0) {
+			tile = tiles = null;
+			return;
+		}
+		tile = new int[3];
+		tiles = new int[3];
+		for(int a=0;a<3;a++) {
+			tile[a] = Math.min(tileSize, boxes[a]);
+			tiles[a] = (boxes[a] + tile[a] - 1)/tile[a];
+		}
+		tileEpsilon = epsilon;
+		int n = tiles[0]*tiles[1]*tiles[2];
+		live = new boolean[n];
+		updated = new boolean[n];
+		updatedBefore = new boolean[n];
+		updateList = new int[n];
+		// The buffers may differ anywhere, so treat every tile as changed
+		Arrays.fill(live, true);
+		Arrays.fill(updatedBefore, true);
+	}
+	
+	/** Whether active tiles are enabled. */
+	boolean activeTiles() {
+		return tile != null;
+	}
+	
+	/** Returns the number of tiles updated by the last update of the field with active tiles. */
+	public int getUpdatedTiles() {
+		return updatedTiles;
+	}
+	
+	/** Marks the tile containing box (x,y,z) as live (see setActiveTiles()). */
+	protected void markLive(int x, int y, int z) {
+		if(tile != null) live[x/tile[0] + tiles[0]*(y/tile[1] + tiles[1]*(z/tile[2]))] = true;
+	}
+	
+	/** Marks the tile containing the box at position b of quantity[] (see boxIndex()) as live. */
+	void markLiveBox(int b) {
+		if(tile != null) markLive(b % boxes[0], (b / boxes[0]) % boxes[1], b / (boxes[0]*boxes[1]));
+	}
+	
+	/** Marks all the tiles as live (see setActiveTiles()). */
+	protected void markLive() {
+		if(tile != null) Arrays.fill(live, true);
+	}
+	
+	/** The boxes of tile t: x from r[0] to r[1] - 1, y from r[2] to r[3] - 1 and z from r[4] to r[5] - 1. */
+	private int[] tileRange(int t) {
+		int[] c = {t % tiles[0], (t / tiles[0]) % tiles[1], t / (tiles[0]*tiles[1])};
+		int[] r = new int[6];
+		for(int a=0;a<3;a++) {
+			r[2*a] = c[a]*tile[a];
+			r[2*a+1] = Math.min(r[2*a] + tile[a], boxes[a]);
+		}
+		return r;
+	}
+	
+	/**
+	 * The explicit update, of the live tiles and their neighbours only. The other tiles keep their content,
+	 * copied into the new buffer if it was updated in the previous step (else it is the same in both buffers).
+	 */
+	private void tiledStep(final double[] before, final double[] after, final double factor) {
+		int n = live.length;
+		Arrays.fill(updated, false);
+		for(int t=0;t<n;t++) {
+			if(!live[t]) continue;
+			updated[t] = true;
+			int[] c = {t % tiles[0], (t / tiles[0]) % tiles[1], t / (tiles[0]*tiles[1])};
+			for(int a=0;a<3;a++) {
+				for(int d=-1;d<=1;d+=2) {
+					int ca = c[a] + d;
+					if(ca < 0 || ca >= tiles[a]) {
+						if(solid[a]) continue;
+						ca = (ca + tiles[a]) % tiles[a];
+					}
+					int[] m = c.clone();
+					m[a] = ca;
+					updated[m[0] + tiles[0]*(m[1] + tiles[1]*m[2])] = true;
+				}
+			}
+		}
+		int count = 0;
+		for(int t=0;t<n;t++) {
+			if(updated[t]) updateList[count++] = t;
+		}
+		updatedTiles = count;
+		
+		final int[] list = updateList;
+		int tileBoxes = tile[0]*tile[1]*tile[2];
+		if(pool == null) {
+			for(int i=0;i<count;i++) diffuseTile(before, after, list[i], factor);
+		} else {
+			pool.invoke(new LineTask(0, count, Math.max(1, BOXES_PER_TASK/tileBoxes), new LineBody() {
+				public void run(int lo, int hi) {
+					for(int i=lo;i<hi;i++) diffuseTile(before, after, list[i], factor);
+				}
+			}));
+		}
+		
+		for(int t=0;t<n;t++) {
+			if(updated[t] || !updatedBefore[t]) continue;
+			int[] r = tileRange(t);
+			for(int k=r[4];k<r[5];k++) {
+				for(int j=r[2];j<r[3];j++) {
+					int line = boxes[0]*(j + boxes[1]*k);
+					System.arraycopy(before, line + r[0], after, line + r[0], r[1] - r[0]);
+				}
+			}
+		}
+		boolean[] swap = updatedBefore;
+		updatedBefore = updated;
+		updated = swap;
+	}
+	
+	/** Update tile t from before into after, and work out whether it is live. */
+	private void diffuseTile(double[] before, double[] after, int t, double factor) {
+		int[] r = tileRange(t);
+		double max = 0;
+		for(int k=r[4];k<r[5];k++) {
+			for(int j=r[2];j<r[3];j++) {
+				diffuseLine(before, after, j, k, r[0], r[1], factor);
+				int line = boxes[0]*(j + boxes[1]*k);
+				for(int b=line+r[0];b<line+r[1];b++) max = Math.max(max, Math.abs(after[b]));
+			}
+		}
+		live[t] = max > tileEpsilon;
+	}
+	
+	/**
+	 * Diffuse the chemical, and multiply the result by factor (decay).
+	 */
+	private void step(double factor, double dt) {
+		int nx = boxes[0];
+		computeCoefficients(dt);
+		
+		final double[] before = quantity;
+		final double[] after = next;
+		final double f = factor;
+		if(solver == Solver.ADI) {
+			adiStep(before, after, factor);
+		} else if(solver == Solver.SPECTRAL) {
+			spectralStep(before, after, factor);
+		} else if(tile != null) {
+			tiledStep(before, after, factor);
+		} else {
+			forLines(boxes[1]*boxes[2], nx, new LineBody() {
+				public void run(int lo, int hi) {
+					diffuseLines(before, after, lo, hi, f);
+				}
+			});
+		}
+		quantity = after;
+		next = before;
+	}
+	
+	/** Work out the exchange weights and leaks of the next step, of length dt, from the borders of the simulation. */
+	void computeCoefficients(double dt) {
+		/* Flags for solid and leaky borders */
+		solid = sim.getSolid();
 		boolean leaky[] = sim.getLeaky();
 		double  leakyRate[] = sim.getLeakyRate();
 		/*
@@ -186,99 +512,389 @@ public class BSimChemicalField {
 		 * 	J = -D(dC/dx) = -D*(C(x+dx)-C(x))/dx =  -D*(N(x+dx)-N(x))/((dx)^2*dy*dz)  molecules/(micron)^2/sec
 		 * Number of molecules transferred in the positive x-direction over dt
 		 * 	xAbove = J*(dy*dz)*dt = -((D*dt)/(dx)^2)*(N(x+dx)-N(x)) = -kX*(N(x+dx)-N(x))
-		 * where kX = (D*dt)/(dx)^2 is a dimensionless constant
+		 * where kX = (D*dt)/(dx)^2 is a dimensionless constant.
+		 * Each pair of neighbouring boxes exchanges this in both directions, so 2*kX in all.
 		 */
-		double normX = sim.getDt()/Math.pow(box[0],2);
-		double normY = sim.getDt()/Math.pow(box[1],2);
-		double normZ = sim.getDt()/Math.pow(box[2],2);
-		double kX = diffusivity*normX;
-		double kY = diffusivity*normY;
-		double kZ = diffusivity*normZ;
-		for(int i=0;i<boxes[0];i++)
-			for(int j=0;j<boxes[1];j++)
-				for(int k=0;k<boxes[2];k++) {	
-					/* Is this box the last box? 
-					 * 	If so, is the boundary solid? If so, there is no box above, else, the box 'above' is the first box
-					 * 	Else, the box above is the next box */
-					xAbove = (i == boxes[0]-1 ? (sim.getSolid()[0] ? -1 : 0) : i+1);
-					xBelow = (i == 0 ? (sim.getSolid()[0] ? -1 : boxes[0]-1) : i-1);
-					yAbove = (j == boxes[1]-1 ? (sim.getSolid()[1] ? -1 : 0) : j+1);
-					yBelow = (j == 0 ? (sim.getSolid()[1] ? -1 : boxes[1]-1) : j-1);
-					zAbove = (k == boxes[2]-1 ? (sim.getSolid()[2] ? -1 : 0) : k+1);
-					zBelow = (k == 0 ? (sim.getSolid()[2] ? -1 : boxes[2]-1) : k-1);
-					
-					if(xAbove != -1) {
-						/* Calculate the quantity of chemical leaving the box in this direction */
-						qxAbove = -kX*(before[xAbove][j][k]-before[i][j][k]);
-						/* Add that quantity to the box above */ 
-						quantity[xAbove][j][k] += qxAbove;
-						/* Remove it from this box */
-						quantity[i][j][k] -= qxAbove;
-					} else {
-						if (leaky[0]) {
-							/* Calculate the quantity of chemical leaving the box in this direction (0 outside box if leaky)*/
-							qxAbove = normX*leakyRate[0]*before[i][j][k];
-							/* Remove it from this box */
-							quantity[i][j][k] -= qxAbove;
-						}
+		double normX = dt/Math.pow(box[0],2);
+		double normY = dt/Math.pow(box[1],2);
+		double normZ = dt/Math.pow(box[2],2);
+		cX = 2*diffusivity*normX;
+		cY = 2*diffusivity*normY;
+		cZ = 2*diffusivity*normZ;
+		/* Fraction of the chemical in a box leaving through a leaky (solid) border */
+		leakXAbove = (solid[0] && leaky[0]) ? normX*leakyRate[0] : 0;
+		leakXBelow = (solid[0] && leaky[1]) ? normX*leakyRate[1] : 0;
+		leakYAbove = (solid[1] && leaky[2]) ? normY*leakyRate[2] : 0;
+		leakYBelow = (solid[1] && leaky[3]) ? normY*leakyRate[3] : 0;
+		leakZAbove = (solid[2] && leaky[4]) ? normZ*leakyRate[4] : 0;
+		leakZBelow = (solid[2] && leaky[5]) ? normZ*leakyRate[5] : 0;
+	}
+	
+	/** Run the body over lines [0, lines) of the given length, in parallel if there is a pool. */
+	void forLines(int lines, int length, LineBody body) {
+		if(pool == null) {
+			body.run(0, lines);
+		} else {
+			pool.invoke(new LineTask(0, lines, Math.max(1, BOXES_PER_TASK/length), body));
+		}
+	}
+	
+	/**
+	 * One step of the Douglas ADI scheme (Crank-Nicolson weighted, which keeps it unconditionally stable in three
+	 * dimensions), from before (u) into after, multiplied by factor. With A = Ax + Ay + Az the change over one
+	 * explicit step, split by axis (including the leaks through the borders), it is solved in delta form:
+	 * 	(I - Ax/2) d1 = A u,	(I - Ay/2) d2 = d1,	(I - Az/2) d = d2,	u' = u + d
+	 * Each stage solves independent tridiagonal (cyclic tridiagonal, for periodic borders) systems along the lines
+	 * of one axis. The matrices are the same for all lines of an axis, so they are factorised once per step, and
+	 * the y and z lines are solved in blocks of neighbouring lines, along contiguous memory.
+	 * Axes with a single box and no leak do nothing, and are skipped.
+	 */
+	private void adiStep(final double[] u, final double[] v, final double factor) {
+		final int nx = boxes[0], ny = boxes[1], nz = boxes[2];
+		if(lineSystems == null) lineSystems = new LineSystem[] {new LineSystem(), new LineSystem(), new LineSystem()};
+		final LineSystem x = lineSystems[0], y = lineSystems[1], z = lineSystems[2];
+		x.set(nx, cX, solid[0], leakXAbove, leakXBelow);
+		y.set(ny, cY, solid[1], leakYAbove, leakYBelow);
+		z.set(nz, cZ, solid[2], leakZAbove, leakZBelow);
+		final boolean xLast = !y.active && !z.active;
+		final boolean yLast = !z.active;
+		
+		// A u, from the explicit update, then the x lines
+		forLines(ny*nz, nx, new LineBody() {
+			public void run(int lo, int hi) {
+				diffuseLines(u, v, lo, hi, 1.0);
+				for(int b=nx*lo;b<nx*hi;b++) v[b] -= u[b];
+				double[] scratch = new double[1];
+				for(int l=lo;l<hi;l++) {
+					if(x.active) x.solve(v, nx*l, 1, 1, scratch);
+					if(xLast) finish(u, v, nx*l, 1, nx, 1, factor);
+				}
+			}
+		});
+		
+		// y lines, in blocks of neighbouring x
+		if(y.active) {
+			final int blocks = (nx + ADI_BLOCK - 1)/ADI_BLOCK;
+			forLines(nz*blocks, ADI_BLOCK*ny, new LineBody() {
+				public void run(int lo, int hi) {
+					double[] scratch = new double[ADI_BLOCK];
+					for(int l=lo;l<hi;l++) {
+						int i = ADI_BLOCK*(l % blocks);
+						int base = i + nx*ny*(l / blocks);
+						int width = Math.min(ADI_BLOCK, nx - i);
+						y.solve(v, base, nx, width, scratch);
+						if(yLast) finish(u, v, base, nx, ny, width, factor);
 					}
-					
-					if(xBelow != -1) {
-						qxBelow = -kX*(before[xBelow][j][k]-before[i][j][k]);
-						quantity[xBelow][j][k] += qxBelow;
-						quantity[i][j][k] -= qxBelow;
-					} else {
-						if (leaky[1]) {
-							qxBelow = normX*leakyRate[1]*before[i][j][k];
-							quantity[i][j][k] -= qxBelow;
-						}
+				}
+			});
+		}
+		
+		// z lines, in blocks of neighbouring (x, y)
+		if(z.active) {
+			final int plane = nx*ny;
+			final int blocks = (plane + ADI_BLOCK - 1)/ADI_BLOCK;
+			forLines(blocks, ADI_BLOCK*nz, new LineBody() {
+				public void run(int lo, int hi) {
+					double[] scratch = new double[ADI_BLOCK];
+					for(int l=lo;l<hi;l++) {
+						int base = ADI_BLOCK*l;
+						int width = Math.min(ADI_BLOCK, plane - base);
+						z.solve(v, base, plane, width, scratch);
+						finish(u, v, base, plane, nz, width, factor);
 					}
-					
-					if(yAbove != -1) {
-						qyAbove = -kY*(before[i][yAbove][k]-before[i][j][k]);
-						quantity[i][yAbove][k] += qyAbove;
-						quantity[i][j][k] -= qyAbove;
-					} else {
-						if (leaky[2]) {
-							qyAbove = normY*leakyRate[2]*before[i][j][k];
-							quantity[i][j][k] -= qyAbove;
-						}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * An exact step of the (spatially discrete) diffusion of the explicit update, for a field with periodic
+	 * borders, from before into after, multiplied by factor. The Fourier modes of the field are the eigenvectors
+	 * of the exchange between boxes: mode (kx, ky, kz) decays by the factor
+	 * 	exp(-2*cX*(1 - cos(2*pi*kx/nx))) * exp(-2*cY*(1 - cos(2*pi*ky/ny))) * exp(-2*cZ*(1 - cos(2*pi*kz/nz)))
+	 * over a step, whatever its length. The field is transformed along each axis in turn (the lines in parallel),
+	 * multiplied, and transformed back, in O(N log N).
+	 */
+	private void spectralStep(final double[] before, final double[] after, double factor) {
+		if(solid[0] || solid[1] || solid[2]) {
+			throw new IllegalStateException("The spectral solver needs periodic borders on all sides");
+		}
+		final int nx = boxes[0], ny = boxes[1], nz = boxes[2];
+		if(transforms == null) {
+			transforms = new FFT[] {new FFT(nx), new FFT(ny), new FFT(nz)};
+			imaginary = new double[before.length];
+		}
+		final double[] re = after, im = imaginary;
+		System.arraycopy(before, 0, re, 0, before.length);
+		Arrays.fill(im, 0.0);
+		
+		transformAxes(re, im, false);
+		
+		final double[] ex = modeFactors(nx, cX), ey = modeFactors(ny, cY), ez = modeFactors(nz, cZ);
+		final double scale = factor/((double)nx*ny*nz);
+		forLines(ny*nz, nx, new LineBody() {
+			public void run(int lo, int hi) {
+				for(int l=lo;l<hi;l++) {
+					double f = scale*ey[l % ny]*ez[l / ny];
+					for(int i=0;i<nx;i++) {
+						int b = nx*l + i;
+						re[b] *= f*ex[i];
+						im[b] *= f*ex[i];
 					}
-					
-					if(yBelow != -1) {
-						qyBelow = -kY*(before[i][yBelow][k]-before[i][j][k]);
-						quantity[i][yBelow][k] += qyBelow;
-						quantity[i][j][k] -= qyBelow;
-					} else {
-						if (leaky[3]) {
-							qyBelow = normY*leakyRate[3]*before[i][j][k];
-							quantity[i][j][k] -= qyBelow;
+				}
+			}
+		});
+		
+		transformAxes(re, im, true);
+	}
+	
+	/** exp(-2*c*(1 - cos(2*pi*k/n))) for the modes k of an axis of n boxes. */
+	private static double[] modeFactors(int n, double c) {
+		double[] e = new double[n];
+		for(int k=0;k<n;k++) e[k] = Math.exp(-2*c*(1 - Math.cos(2*Math.PI*k/n)));
+		return e;
+	}
+	
+	/** Transform (re, im) along each axis with more than one box, forwards or (unnormalised) inverse. */
+	private void transformAxes(final double[] re, final double[] im, final boolean inverse) {
+		final int nx = boxes[0], ny = boxes[1];
+		for(int a=0;a<3;a++) {
+			final int n = boxes[a];
+			if(n == 1) continue;
+			final FFT fft = transforms[a];
+			final int stride = (a == 0) ? 1 : (a == 1) ? nx : nx*ny;
+			final int axis = a;
+			forLines(re.length/n, n, new LineBody() {
+				public void run(int lo, int hi) {
+					double[] lineRe = new double[n], lineIm = new double[n];
+					double[] workRe = new double[fft.workLength()], workIm = new double[fft.workLength()];
+					for(int l=lo;l<hi;l++) {
+						// Line l of the axis: the boxes with the other two coordinates given by l
+						int base = (axis == 0) ? n*l : (axis == 1) ? (l % nx) + nx*n*(l / nx) : l;
+						for(int t=0;t<n;t++) {
+							lineRe[t] = re[base + stride*t];
+							lineIm[t] = im[base + stride*t];
 						}
-					}
-					
-					if(zAbove != -1) {
-						qzAbove = -kZ*(before[i][j][zAbove]-before[i][j][k]);
-						quantity[i][j][zAbove] += qzAbove;
-						quantity[i][j][k] -= qzAbove;
-					} else {
-						if (leaky[4]) {
-							qzAbove = normZ*leakyRate[4]*before[i][j][k];
-							quantity[i][j][k] -= qzAbove;
+						fft.transform(lineRe, lineIm, inverse, workRe, workIm);
+						for(int t=0;t<n;t++) {
+							re[base + stride*t] = lineRe[t];
+							im[base + stride*t] = lineIm[t];
 						}
 					}
-					
-					if(zBelow != -1) {
-						qzBelow = -kZ*(before[i][j][zBelow]-before[i][j][k]);
-						quantity[i][j][zBelow] += qzBelow;
-						quantity[i][j][k] -= qzBelow;
-					} else {
-						if (leaky[3]) {
-							qzBelow = normZ*leakyRate[5]*before[i][j][k];
-							quantity[i][j][k] -= qzBelow;
-						}
+				}
+			});
+		}
+	}
+	
+	/** u' = (u + d)*factor, over a block of width neighbouring lines of n boxes, stride apart. */
+	private static void finish(double[] u, double[] v, int base, int stride, int n, int width, double factor) {
+		for(int t=0;t<n;t++) {
+			int row = base + stride*t;
+			for(int b=row;b<row+width;b++) v[b] = (u[b] + v[b])*factor;
+		}
+	}
+	
+	/**
+	 * The system (I - A/2) x = r along the lines of one axis, where A is the change over one explicit step: exchange
+	 * with weight c between neighbours, and the leaks at solid borders. It is tridiagonal if the borders are solid,
+	 * and cyclic tridiagonal if they are periodic, which is solved with the Sherman-Morrison formula (the corners
+	 * are a rank one correction to a tridiagonal system).
+	 */
+	private static class LineSystem {
+		int n;
+		boolean periodic;
+		/** Whether the system is not the identity. */
+		boolean active;
+		/** Sub- and super-diagonal. */
+		double off;
+		/** LU factors (Thomas algorithm): reciprocal pivots, and the super-diagonal of U. */
+		double[] invPivot = new double[0], upper = new double[0];
+		/** Periodic: the solution for the rank one correction, and its weight. */
+		double[] z = new double[0];
+		double cornerRatio, invDenominator;
+		
+		void set(int n, double c, boolean solid, double leakAbove, double leakBelow) {
+			this.n = n;
+			this.periodic = !solid;
+			this.active = n > 1 || leakAbove > 0 || leakBelow > 0;
+			this.off = -0.5*c;
+			if(invPivot.length != n) {
+				invPivot = new double[n];
+				upper = new double[n];
+				z = new double[n];
+			}
+			double diag = 1 + c;
+			if(n == 1) {
+				// No neighbours: only the leaks (a single periodic box exchanges with itself)
+				invPivot[0] = 1/(1 + (solid ? 0.5*(leakAbove + leakBelow) : 0));
+			} else if(periodic && n == 2) {
+				// Both neighbours are the other box: solved directly
+				invPivot[0] = 1/(diag*diag - c*c);
+			} else if(periodic) {
+				double gamma = -diag;
+				factorise(diag - gamma, diag, diag - off*off/gamma);
+				Arrays.fill(z, 0.0);
+				z[0] = gamma;
+				z[n-1] = off;
+				solveTridiagonal(z, 0, 1, 1);
+				cornerRatio = off/gamma;
+				invDenominator = 1/(1 + z[0] + cornerRatio*z[n-1]);
+			} else {
+				// The boxes at the ends have one neighbour, and lose their leak
+				factorise(1 + 0.5*(c + leakBelow), diag, 1 + 0.5*(c + leakAbove));
+			}
+		}
+		
+		private void factorise(double first, double diag, double last) {
+			double pivot = first;
+			for(int t=0;t<n;t++) {
+				if(t > 0) pivot = ((t == n-1) ? last : diag) - off*upper[t-1];
+				invPivot[t] = 1/pivot;
+				upper[t] = off*invPivot[t];
+			}
+		}
+		
+		/** Solve in place, for width neighbouring lines starting at base, with their boxes stride apart. */
+		void solve(double[] v, int base, int stride, int width, double[] scratch) {
+			int end = base + width;
+			if(n == 1) {
+				for(int b=base;b<end;b++) v[b] *= invPivot[0];
+			} else if(periodic && n == 2) {
+				double d = 1 - 2*off, o = 2*off;
+				for(int b=base;b<end;b++) {
+					double r0 = v[b], r1 = v[b+stride];
+					v[b] = (d*r0 - o*r1)*invPivot[0];
+					v[b+stride] = (d*r1 - o*r0)*invPivot[0];
+				}
+			} else {
+				solveTridiagonal(v, base, stride, width);
+				if(periodic) {
+					int last = stride*(n-1);
+					for(int m=0;m<width;m++) {
+						scratch[m] = (v[base+m] + cornerRatio*v[base+m+last])*invDenominator;
+					}
+					for(int t=0;t<n;t++) {
+						int row = base + stride*t;
+						double zt = z[t];
+						for(int m=0;m<width;m++) v[row+m] -= scratch[m]*zt;
 					}
-					
 				}
+			}
+		}
+		
+		private void solveTridiagonal(double[] v, int base, int stride, int width) {
+			for(int m=0;m<width;m++) v[base+m] *= invPivot[0];
+			for(int t=1;t<n;t++) {
+				int row = base + stride*t;
+				double p = invPivot[t];
+				for(int b=row;b<row+width;b++) v[b] = (v[b] - off*v[b-stride])*p;
+			}
+			for(int t=n-2;t>=0;t--) {
+				int row = base + stride*t;
+				double up = upper[t];
+				for(int b=row;b<row+width;b++) v[b] -= up*v[b+stride];
+			}
+		}
+	}
+	
+	/**
+	 * Update the lines of boxes along x lineLo ... lineHi - 1 (line j + ny*k holds the boxes (i,j,k)) from before
+	 * into after, multiplied by factor.
+	 */
+	private void diffuseLines(double[] before, double[] after, int lineLo, int lineHi, double factor) {
+		int nx = boxes[0], ny = boxes[1];
+		for(int l=lineLo;l<lineHi;l++) {
+			diffuseLine(before, after, l % ny, l / ny, 0, nx, factor);
+		}
+	}
+	
+	/**
+	 * Update the boxes (x0 ... x1 - 1, j, k) of a line along x from before into after, multiplied by factor.
+	 */
+	private void diffuseLine(double[] before, double[] after, int j, int k, int x0, int x1, double factor) {
+		int nx = boxes[0], ny = boxes[1], nz = boxes[2];
+		int zAbove = above(k, nz, solid[2]);
+		int zBelow = below(k, nz, solid[2]);
+		int yAbove = above(j, ny, solid[1]);
+		int yBelow = below(j, ny, solid[1]);
+		int line = nx*(j + ny*k);
+		
+		/* Offsets of the neighbouring lines, and their weights; a missing neighbour (solid border) has
+		 * weight 0, as does the box itself (a single periodic box), and the offset is then that of this line */
+		int oYA = (yAbove < 0) ? 0 : nx*(yAbove - j);
+		int oYB = (yBelow < 0) ? 0 : nx*(yBelow - j);
+		int oZA = (zAbove < 0) ? 0 : nx*ny*(zAbove - k);
+		int oZB = (zBelow < 0) ? 0 : nx*ny*(zBelow - k);
+		double wYA = (oYA == 0) ? 0 : cY;
+		double wYB = (oYB == 0) ? 0 : cY;
+		double wZA = (oZA == 0) ? 0 : cZ;
+		double wZB = (oZB == 0) ? 0 : cZ;
+		/* Fraction remaining after exchange in y and z, and leaks at y and z borders */
+		double keep = 1 - wYA - wYB - wZA - wZB
+				- (yAbove < 0 ? leakYAbove : 0) - (yBelow < 0 ? leakYBelow : 0)
+				- (zAbove < 0 ? leakZAbove : 0) - (zBelow < 0 ? leakZBelow : 0);
+		
+		/* Boxes with neighbours on both sides in x */
+		FieldKernel.INSTANCE.stencil7(before, after, line + Math.max(x0, 1), line + Math.min(x1, nx-1), keep - 2*cX, cX,
+				wYA, oYA, wYB, oYB, wZA, oZA, wZB, oZB, factor);
+		
+		/* The boxes at either end of the line */
+		for(int i=0;i<nx;i+=Math.max(nx-1,1)) {
+			if(i < x0 || i >= x1) continue;
+			int b = line + i;
+			double q = keep*before[b]
+					+ wYA*before[b+oYA] + wYB*before[b+oYB] + wZA*before[b+oZA] + wZB*before[b+oZB];
+			int xAbove = above(i, nx, solid[0]);
+			int xBelow = below(i, nx, solid[0]);
+			if(xAbove >= 0) q += cX*(before[line+xAbove] - before[b]);
+			else q -= leakXAbove*before[b];
+			if(xBelow >= 0) q += cX*(before[line+xBelow] - before[b]);
+			else q -= leakXBelow*before[b];
+			after[b] = q*factor;
+		}
+	}
+	
+	/** A loop body over the lines [lo, hi). */
+	interface LineBody {
+		void run(int lo, int hi);
+	}
+	
+	/** Splits the lines [lo, hi) in halves until there are at most grain of them, and runs the body on those. */
+	static class LineTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final int lo, hi, grain;
+		final LineBody body;
+		
+		LineTask(int lo, int hi, int grain, LineBody body) {
+			this.lo = lo;
+			this.hi = hi;
+			this.grain = grain;
+			this.body = body;
+		}
+		
+		@Override
+		protected void compute() {
+			if(hi - lo <= grain) {
+				body.run(lo, hi);
+			} else {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new LineTask(lo, mid, grain, body), new LineTask(mid, hi, grain, body));
+			}
+		}
+	}
+	
+	/**
+	 * Index of the box in the positive direction from box i of n, taking account of the boundary conditions:
+	 * at the last box, -1 if the boundary is solid, else (periodic) the first box.
+	 */
+	static int above(int i, int n, boolean solid) {
+		return (i == n-1 ? (solid ? -1 : 0) : i+1);
+	}
+	
+	/** As above(), in the negative direction. */
+	static int below(int i, int n, boolean solid) {
+		return (i == 0 ? (solid ? -1 : n-1) : i-1);
 	}
 	
 }
@@ -0,0 +1,139 @@
+package bsim;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Chemical field for two-dimensional (monolayer) simulations: a single layer of boxes in z, spanning the
+ * simulation bound. It can be used anywhere a BSimChemicalField can, and gives the same results, but its
+ * explicit update is a five-point stencil in x and y that does not look for neighbours in z (with active
+ * tiles, or the ADI solver, it uses the general update of BSimChemicalField).
+ * The z borders still count: if solid and leaky, chemical leaks through the top and bottom of every box.
+ *
+ * It also interpolates the concentration between the centres of the boxes (getConcInterpolated()).
+ */
+public class BSimChemicalField2D extends BSimChemicalField {
+
+	/**
+	 * Creates a two-dimensional chemical field.
+	 * @param sim Associated simulation.
+	 * @param boxes Number of boxes in the (x,y,z) directions; there must be a single box in z.
+	 * @param diffusivity Diffusivity of the chemical (microns)^2/s.
+	 * @param decayRate Decay rate of the chemical (molecules/s).
+	 */
+	public BSimChemicalField2D(BSim sim, int[] boxes, double diffusivity, double decayRate) {
+		super(sim, checkBoxes(boxes), diffusivity, decayRate);
+	}
+
+	/**
+	 * Creates a two-dimensional chemical field with nx by ny boxes.
+	 */
+	public BSimChemicalField2D(BSim sim, int nx, int ny, double diffusivity, double decayRate) {
+		this(sim, new int[] {nx, ny, 1}, diffusivity, decayRate);
+	}
+
+	private static int[] checkBoxes(int[] boxes) {
+		if(boxes[2] != 1) throw new IllegalArgumentException("A two-dimensional chemical field has one box in z, not " + boxes[2]);
+		return boxes;
+	}
+
+	/**
+	 * Gets the concentration at the position v in molecules/(micron)^3, interpolated (bilinearly) between the
+	 * centres of the four nearest boxes. Beyond the centres of the outermost boxes it is that of the outermost
+	 * boxes at a solid border, and interpolated across a periodic border.
+	 */
+	public double getConcInterpolated(Vector3d v) {
+		boolean[] solid = sim.getSolid();
+		int nx = boxes[0], ny = boxes[1];
+		double fx = v.x/box[0] - 0.5;
+		double fy = v.y/box[1] - 0.5;
+		int i0 = (int)Math.floor(fx);
+		int j0 = (int)Math.floor(fy);
+		double tx = fx - i0;
+		double ty = fy - j0;
+		int i1 = i0 + 1, j1 = j0 + 1;
+		if(solid[0]) {
+			i0 = Math.min(Math.max(i0, 0), nx-1);
+			i1 = Math.min(Math.max(i1, 0), nx-1);
+		} else {
+			i0 = Math.floorMod(i0, nx);
+			i1 = Math.floorMod(i1, nx);
+		}
+		if(solid[1]) {
+			j0 = Math.min(Math.max(j0, 0), ny-1);
+			j1 = Math.min(Math.max(j1, 0), ny-1);
+		} else {
+			j0 = Math.floorMod(j0, ny);
+			j1 = Math.floorMod(j1, ny);
+		}
+		double q = (1-ty)*((1-tx)*quantity[i0 + nx*j0] + tx*quantity[i1 + nx*j0])
+				+ ty*((1-tx)*quantity[i0 + nx*j1] + tx*quantity[i1 + nx*j1]);
+		return q/boxVolume;
+	}
+
+	@Override
+	public void update(double dt) {
+		if(getSolver() == Solver.EXPLICIT && !activeTiles()) step2D(1 - decayRate*dt, dt);
+		else super.update(dt);
+	}
+
+	@Override
+	public void diffuse(double dt) {
+		if(getSolver() == Solver.EXPLICIT && !activeTiles()) step2D(1.0, dt);
+		else super.diffuse(dt);
+	}
+
+	/**
+	 * Diffuse the chemical over dt with the five-point stencil, and multiply the result by factor (decay).
+	 */
+	private void step2D(final double factor, double dt) {
+		computeCoefficients(dt);
+		final double[] before = quantity;
+		final double[] after = next;
+		forLines(boxes[1], boxes[0], new LineBody() {
+			public void run(int lo, int hi) {
+				diffuseRows(before, after, lo, hi, factor);
+			}
+		});
+		quantity = after;
+		next = before;
+	}
+
+	/**
+	 * Update the rows of boxes along x [rowLo, rowHi) from before into after, as diffuseLines() does for a
+	 * single layer: only the two neighbouring rows in y, and a fixed leak through the z borders.
+	 */
+	private void diffuseRows(double[] before, double[] after, int rowLo, int rowHi, double factor) {
+		int nx = boxes[0], ny = boxes[1];
+		for(int j=rowLo;j<rowHi;j++) {
+			int yAbove = above(j, ny, solid[1]);
+			int yBelow = below(j, ny, solid[1]);
+			int row = nx*j;
+
+			/* Offsets of the neighbouring rows, and their weights (0 for a missing neighbour or the row itself) */
+			int oYA = (yAbove < 0) ? 0 : nx*(yAbove - j);
+			int oYB = (yBelow < 0) ? 0 : nx*(yBelow - j);
+			double wYA = (oYA == 0) ? 0 : cY;
+			double wYB = (oYB == 0) ? 0 : cY;
+			/* Fraction remaining after exchange in y, and leaks at the y and z borders */
+			double keep = 1 - wYA - wYB
+					- (yAbove < 0 ? leakYAbove : 0) - (yBelow < 0 ? leakYBelow : 0)
+					- leakZAbove - leakZBelow;
+
+			/* Boxes with neighbours on both sides in x */
+			FieldKernel.INSTANCE.stencil5(before, after, row+1, row+nx-1, keep - 2*cX, cX, wYA, oYA, wYB, oYB, factor);
+
+			/* The boxes at either end of the row */
+			for(int i=0;i<nx;i+=Math.max(nx-1,1)) {
+				int b = row + i;
+				double q = keep*before[b] + wYA*before[b+oYA] + wYB*before[b+oYB];
+				int xAbove = above(i, nx, solid[0]);
+				int xBelow = below(i, nx, solid[0]);
+				if(xAbove >= 0) q += cX*(before[row+xAbove] - before[b]);
+				else q -= leakXAbove*before[b];
+				if(xBelow >= 0) q += cX*(before[row+xBelow] - before[b]);
+				else q -= leakXBelow*before[b];
+				after[b] = q*factor;
+			}
+		}
+	}
+}
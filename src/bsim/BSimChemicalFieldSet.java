@@ -0,0 +1,323 @@
+package bsim;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Several chemicals diffusing on the same grid of boxes, each with its own diffusivity and decay rate.
+ * The quantities are stored interleaved, the species of each line of boxes together, so one update() diffuses
+ * and decays all of them in a single pass over the memory rather than one pass per field.
+ *
+ * Each species is also available as a BSimChemicalField (getField()), for use by the bacteria and drawers
+ * exactly as a separate field would be (getConc(), addQuantity(), setConc() etc.). These share the storage
+ * of the set, and are updated by it (with the explicit scheme): call update() on the set, not on the species.
+ * The species are therefore not a drop-in replacement for fields in code that updates them itself: their
+ * update() and diffuse() throw UnsupportedOperationException, as do setSolver() (other than EXPLICIT) and
+ * setActiveTiles(). setThreads(), getThreads() and shutdown() act on the set.
+ */
+public class BSimChemicalFieldSet {
+
+	/** Simulation the chemical fields are associated with. */
+	protected BSim sim;
+	/** Number of boxes in each dimension. */
+	protected int[] boxes;
+	/** Box size. */
+	protected double[] box = new double[3];
+	/** Number of species. */
+	protected int n;
+	/**
+	 * The quantities of each line of boxes along x (l = y + boxes[1]*z) for each species in turn: box (x,y,z) of
+	 * species s is quantity[x + boxes[0]*(s + n*l)]. All the species of a box are close together, and a line of
+	 * one species is contiguous.
+	 */
+	protected double[] quantity;
+	/** Buffer for the updated quantities, which is then swapped with quantity. */
+	private double[] next;
+	/** The species, as fields. */
+	private Species[] species;
+	/** Optional thread pool for parallel updates; null for sequential updates. */
+	private ForkJoinPool pool;
+	/** Approximate number of quantities updated by each task of a parallel update. */
+	private static final int QUANTITIES_PER_TASK = 16384;
+
+	/* Per-update coefficients (see BSimChemicalField.step()): exchange per species, and leaks */
+	private boolean[] solid;
+	private double[] cX, cY, cZ, factor;
+	private double leakXAbove, leakXBelow, leakYAbove, leakYBelow, leakZAbove, leakZBelow;
+
+	/**
+	 * Creates a set of chemical fields, one per entry of diffusivity and decayRate.
+	 * @param sim Associated simulation.
+	 * @param boxes Number of boxes in the (x,y,z) directions.
+	 * @param diffusivity Diffusivity of each chemical (microns)^2/s.
+	 * @param decayRate Decay rate of each chemical (1/s).
+	 */
+	public BSimChemicalFieldSet(BSim sim, int[] boxes, double[] diffusivity, double[] decayRate) {
+		assert diffusivity.length == decayRate.length : "Chemical field set - one decay rate per diffusivity";
+		this.sim = sim;
+		this.boxes = boxes;
+		this.n = diffusivity.length;
+		box[0] = sim.getBound().x/(double)boxes[0];
+		box[1] = sim.getBound().y/(double)boxes[1];
+		box[2] = sim.getBound().z/(double)boxes[2];
+		this.quantity = new double[n*boxes[0]*boxes[1]*boxes[2]];
+		this.next = new double[quantity.length];
+		this.species = new Species[n];
+		for(int s=0;s<n;s++) species[s] = new Species(s, diffusivity[s], decayRate[s]);
+		cX = new double[n];
+		cY = new double[n];
+		cZ = new double[n];
+		factor = new double[n];
+	}
+
+	/** Returns the number of species. */
+	public int size() { return n; }
+
+	/** Returns species s as a chemical field, sharing the storage of the set. */
+	public BSimChemicalField getField(int s) { return species[s]; }
+
+	/** Return the number of boxes in (x,y,z) directions. */
+	public int[] getBoxes() { return boxes; }
+	/** Return the size of each box (x,y,z) in microns. */
+	public double[] getBox() { return box; }
+
+	/**
+	 * Update all the chemical fields by diffusing and decaying the chemicals present, with the same results as
+	 * updating each as a separate BSimChemicalField, in a single pass.
+	 */
+	public void update() {
+		update(sim.getDt());
+	}
+
+	/** Update all the chemical fields over a timestep dt other than that of the simulation. */
+	public void update(double dt) {
+		for(int s=0;s<n;s++) factor[s] = 1 - species[s].decayRate*dt;
+		step(dt);
+	}
+
+	/** Diffuse all the chemicals present. */
+	public void diffuse() {
+		diffuse(sim.getDt());
+	}
+
+	/** Diffuse all the chemicals present over the timestep dt. */
+	public void diffuse(double dt) {
+		for(int s=0;s<n;s++) factor[s] = 1.0;
+		step(dt);
+	}
+
+	/** Decay all the chemicals present. */
+	public void decay() {
+		decay(sim.getDt());
+	}
+
+	/** Decay all the chemicals present over the timestep dt. */
+	public void decay(double dt) {
+		for(int s=0;s<n;s++) species[s].decay(dt);
+	}
+
+	/** Returns the longest stable timestep for update(): the shortest of those of the species. */
+	public double getStableDt() {
+		double dt = Double.POSITIVE_INFINITY;
+		for(int s=0;s<n;s++) dt = Math.min(dt, species[s].getStableDt());
+		return dt;
+	}
+
+	/**
+	 * Enables parallel updates on the given number of threads; threads <= 0 disables it.
+	 * As for BSimChemicalField, the results are the same as for a sequential update. Call shutdown() (or
+	 * setThreads(0)) to release the threads when the fields are no longer needed.
+	 */
+	public void setThreads(int threads) {
+		if(pool != null) pool.shutdown();
+		pool = (threads > 0) ? new ForkJoinPool(threads) : null;
+	}
+
+	/** Returns the number of threads used to update the fields, 0 if they are updated sequentially. */
+	public int getThreads() {
+		return (pool == null) ? 0 : pool.getParallelism();
+	}
+
+	/** Releases the threads used for parallel updates; the fields revert to sequential updates. */
+	public void shutdown() {
+		setThreads(0);
+	}
+
+	/**
+	 * Diffuse all the chemicals over dt, and multiply each by its factor (decay). The coefficients are those of
+	 * BSimChemicalField.step(), per species; the leaks through the borders are the same for all species.
+	 */
+	private void step(double dt) {
+		solid = sim.getSolid();
+		boolean leaky[] = sim.getLeaky();
+		double  leakyRate[] = sim.getLeakyRate();
+		double normX = dt/Math.pow(box[0],2);
+		double normY = dt/Math.pow(box[1],2);
+		double normZ = dt/Math.pow(box[2],2);
+		for(int s=0;s<n;s++) {
+			cX[s] = 2*species[s].diffusivity*normX;
+			cY[s] = 2*species[s].diffusivity*normY;
+			cZ[s] = 2*species[s].diffusivity*normZ;
+		}
+		leakXAbove = (solid[0] && leaky[0]) ? normX*leakyRate[0] : 0;
+		leakXBelow = (solid[0] && leaky[1]) ? normX*leakyRate[1] : 0;
+		leakYAbove = (solid[1] && leaky[2]) ? normY*leakyRate[2] : 0;
+		leakYBelow = (solid[1] && leaky[3]) ? normY*leakyRate[3] : 0;
+		leakZAbove = (solid[2] && leaky[4]) ? normZ*leakyRate[4] : 0;
+		leakZBelow = (solid[2] && leaky[5]) ? normZ*leakyRate[5] : 0;
+
+		final double[] before = quantity;
+		final double[] after = next;
+		int lines = boxes[1]*boxes[2];
+		BSimChemicalField.LineBody body = new BSimChemicalField.LineBody() {
+			public void run(int lo, int hi) {
+				diffuseLines(before, after, lo, hi);
+			}
+		};
+		if(pool == null) {
+			body.run(0, lines);
+		} else {
+			pool.invoke(new BSimChemicalField.LineTask(0, lines, Math.max(1, QUANTITIES_PER_TASK/(n*boxes[0])), body));
+		}
+		quantity = after;
+		next = before;
+		for(int s=0;s<n;s++) species[s].quantity = quantity;
+	}
+
+	/**
+	 * Update the lines of boxes along x [lineLo, lineHi) from before into after, as BSimChemicalField.diffuseLines()
+	 * does for a single species, for each species of the line in turn (so the neighbouring lines are in cache).
+	 */
+	private void diffuseLines(double[] before, double[] after, int lineLo, int lineHi) {
+		int nx = boxes[0], ny = boxes[1], nz = boxes[2];
+		for(int l=lineLo;l<lineHi;l++) {
+			int j = l % ny;
+			int k = l / ny;
+			int zAbove = BSimChemicalField.above(k, nz, solid[2]);
+			int zBelow = BSimChemicalField.below(k, nz, solid[2]);
+			int yAbove = BSimChemicalField.above(j, ny, solid[1]);
+			int yBelow = BSimChemicalField.below(j, ny, solid[1]);
+			int line = n*nx*l;
+
+			/* Offsets of the neighbouring lines, and their weights (0 for a missing neighbour or the box itself) */
+			int oYA = (yAbove < 0) ? 0 : n*nx*(yAbove - j);
+			int oYB = (yBelow < 0) ? 0 : n*nx*(yBelow - j);
+			int oZA = (zAbove < 0) ? 0 : n*nx*ny*(zAbove - k);
+			int oZB = (zBelow < 0) ? 0 : n*nx*ny*(zBelow - k);
+			for(int s=0;s<n;s++) {
+				int start = line + nx*s;
+				double c = cX[s], f = factor[s];
+				double ya = (oYA == 0) ? 0 : cY[s];
+				double yb = (oYB == 0) ? 0 : cY[s];
+				double za = (oZA == 0) ? 0 : cZ[s];
+				double zb = (oZB == 0) ? 0 : cZ[s];
+				double keep = 1 - ya - yb - za - zb
+						- (yAbove < 0 ? leakYAbove : 0) - (yBelow < 0 ? leakYBelow : 0)
+						- (zAbove < 0 ? leakZAbove : 0) - (zBelow < 0 ? leakZBelow : 0);
+
+				/* Boxes with neighbours on both sides in x */
+				FieldKernel.INSTANCE.stencil7(before, after, start+1, start+nx-1, keep - 2*c, c,
+						ya, oYA, yb, oYB, za, oZA, zb, oZB, f);
+
+				/* The boxes at either end of the line */
+				for(int i=0;i<nx;i+=Math.max(nx-1,1)) {
+					int b = start + i;
+					double q = keep*before[b]
+							+ ya*before[b+oYA] + yb*before[b+oYB] + za*before[b+oZA] + zb*before[b+oZB];
+					int xAbove = BSimChemicalField.above(i, nx, solid[0]);
+					int xBelow = BSimChemicalField.below(i, nx, solid[0]);
+					if(xAbove >= 0) q += c*(before[start+xAbove] - before[b]);
+					else q -= leakXAbove*before[b];
+					if(xBelow >= 0) q += c*(before[start+xBelow] - before[b]);
+					else q -= leakXBelow*before[b];
+					after[b] = q*f;
+				}
+			}
+		}
+	}
+
+	/**
+	 * One species of the set, as a chemical field, in the storage of the set.
+	 */
+	private class Species extends BSimChemicalField {
+		final int s;
+
+		Species(int s, double diffusivity, double decayRate) {
+			super(BSimChemicalFieldSet.this.sim, BSimChemicalFieldSet.this.boxes, diffusivity, decayRate, BSimChemicalFieldSet.this.quantity);
+			this.s = s;
+		}
+
+		@Override
+		protected int index(int x, int y, int z) {
+			return x + boxes[0]*(s + n*(y + boxes[1]*z));
+		}
+
+		/** Start of the line of boxes along x with index l (as BSimChemicalField.diffuseLines()) of this species. */
+		private int lineStart(int l) {
+			return boxes[0]*(s + n*l);
+		}
+
+		@Override
+		public void setConc(double c) {
+			for(int l=0;l<boxes[1]*boxes[2];l++) Arrays.fill(quantity, lineStart(l), lineStart(l) + boxes[0], c*boxVolume);
+		}
+
+		@Override
+		public void setConc_mM(double c) {
+			setConc(c*6e5);
+		}
+
+		@Override
+		public double totalQuantity() {
+			double t = 0;
+			for(int l=0;l<boxes[1]*boxes[2];l++) t += FieldKernel.INSTANCE.sum(quantity, lineStart(l), lineStart(l) + boxes[0]);
+			return t;
+		}
+
+		@Override
+		public void decay(double dt) {
+			double factor = 1 - decayRate*dt;
+			for(int l=0;l<boxes[1]*boxes[2];l++) FieldKernel.INSTANCE.scale(quantity, lineStart(l), lineStart(l) + boxes[0], factor);
+		}
+
+		@Override
+		public void addQuantity(double q) {
+			for(int l=0;l<boxes[1]*boxes[2];l++) FieldKernel.INSTANCE.addClamped(quantity, lineStart(l), lineStart(l) + boxes[0], q);
+		}
+
+		/** The species are updated together, by BSimChemicalFieldSet.update(). */
+		@Override
+		public void update(double dt) {
+			throw new UnsupportedOperationException("Update the BSimChemicalFieldSet of this field instead");
+		}
+
+		/** The species are diffused together, by BSimChemicalFieldSet.diffuse(). */
+		@Override
+		public void diffuse(double dt) {
+			throw new UnsupportedOperationException("Diffuse the BSimChemicalFieldSet of this field instead");
+		}
+
+		/** The set only has the explicit scheme. */
+		@Override
+		public void setSolver(Solver solver) {
+			if(solver != Solver.EXPLICIT) throw new UnsupportedOperationException("The species of a BSimChemicalFieldSet are updated with the explicit scheme");
+		}
+
+		/** The set updates all the boxes of all the species. */
+		@Override
+		public void setActiveTiles(int tileSize, double epsilon) {
+			if(tileSize > 0) throw new UnsupportedOperationException("The species of a BSimChemicalFieldSet have no active tiles");
+		}
+
+		/** The threads are those of the set, which updates all the species. */
+		@Override
+		public void setThreads(int threads) {
+			BSimChemicalFieldSet.this.setThreads(threads);
+		}
+
+		@Override
+		public int getThreads() {
+			return BSimChemicalFieldSet.this.getThreads();
+		}
+	}
+}
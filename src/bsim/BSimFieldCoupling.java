@@ -0,0 +1,151 @@
+package bsim;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Lets the bacteria read and add to chemical fields from several threads at once, e.g. to run their actions in
+ * parallel. Each tick:
+ *
+ * 	coupling.begin(bacteria.size());
+ * 	coupling.forEach(bacteria, new BSimFieldCoupling.Action&lt;MyBacterium&gt;() {
+ * 		public void run(int i, MyBacterium b) {
+ * 			coupling.locate(i, b.position);
+ * 			double c = coupling.getConc(0, i);
+ * 			...
+ * 			coupling.addQuantity(1, i, q);
+ * 		}
+ * 	});
+ * 	coupling.end();
+ *
+ * locate() works out the box of a bacterium once per tick, for all the reads and additions that follow, and
+ * records the quantity in it, from which getConc() reads. addQuantity() adds to a slot of the bacterium's own,
+ * which no other thread writes; end() then adds these to the fields in the order of the bacteria, so the
+ * result is the same for any number of threads. The fields themselves only change in end(), so every
+ * bacterium sees them as they were at the start of the tick, whatever the others add meanwhile; between
+ * begin() and end(), nothing else may change them (e.g. BSimChemicalField.addQuantity() or update()). Each box
+ * is clamped at zero once, after all the additions of the tick, rather than after each as by
+ * BSimChemicalField.addQuantity().
+ */
+public class BSimFieldCoupling {
+
+	/** Bacteria handled by each task of forEach(). */
+	private static final int CELLS_PER_TASK = 256;
+
+	/** The coupled fields. */
+	private final BSimChemicalField[] fields;
+	/** Per field and bacterium: its box, the quantity in that box this tick, and the quantity it added. */
+	private int[][] box;
+	private double[][] located;
+	private double[][] added;
+	/** Number of bacteria this tick. */
+	private int cells;
+	/** Optional thread pool for forEach(); null to run sequentially. */
+	private ForkJoinPool pool;
+
+	/** An action on bacterium i of a list. */
+	public interface Action<T> {
+		void run(int i, T cell);
+	}
+
+	public BSimFieldCoupling(BSimChemicalField... fields) {
+		this.fields = fields;
+		int n = fields.length;
+		box = new int[n][0];
+		located = new double[n][0];
+		added = new double[n][0];
+	}
+
+	/**
+	 * Enables forEach() on the given number of threads; threads <= 0 runs it sequentially. Call shutdown() (or
+	 * setThreads(0)) to release the threads when the coupling is no longer needed.
+	 */
+	public void setThreads(int threads) {
+		if(pool != null) pool.shutdown();
+		pool = (threads > 0) ? new ForkJoinPool(threads) : null;
+	}
+
+	/** Returns the number of threads used by forEach(), 0 if it runs sequentially. */
+	public int getThreads() {
+		return (pool == null) ? 0 : pool.getParallelism();
+	}
+
+	/** Releases the threads of forEach(). */
+	public void shutdown() {
+		setThreads(0);
+	}
+
+	/** Starts a tick for the given number of bacteria: clears the additions. */
+	public void begin(int cells) {
+		this.cells = cells;
+		for(int f=0;f<fields.length;f++) {
+			if(box[f].length < cells) {
+				int capacity = Math.max(cells, 2*box[f].length);
+				box[f] = new int[capacity];
+				located[f] = new double[capacity];
+				added[f] = new double[capacity];
+			} else {
+				Arrays.fill(added[f], 0, cells, 0.0);
+			}
+		}
+	}
+
+	/** Sets the position of bacterium i for this tick. */
+	public void locate(int i, Vector3d position) {
+		for(int f=0;f<fields.length;f++) {
+			int b = fields[f].boxIndex(position);
+			box[f][i] = b;
+			located[f][i] = fields[f].quantity[b];
+		}
+	}
+
+	/** Gets the concentration of field f, at the start of the tick, at bacterium i in molecules/(micron)^3. */
+	public double getConc(int f, int i) {
+		return located[f][i]/fields[f].boxVolume;
+	}
+
+	/** Gets the concentration of field f, at the start of the tick, at bacterium i in mM. */
+	public double getConc_mM(int f, int i) {
+		return located[f][i]/fields[f].boxVolume/6e5;
+	}
+
+	/** Adds a quantity of chemical to field f at bacterium i, at the end of the tick. */
+	public void addQuantity(int f, int i, double q) {
+		added[f][i] += q;
+	}
+
+	/** Runs the action on each of the bacteria, in parallel if there are threads (see setThreads()). */
+	public <T> void forEach(final List<T> cells, final Action<? super T> action) {
+		BSimChemicalField.LineBody body = new BSimChemicalField.LineBody() {
+			public void run(int lo, int hi) {
+				for(int i=lo;i<hi;i++) action.run(i, cells.get(i));
+			}
+		};
+		if(pool == null) {
+			body.run(0, cells.size());
+		} else {
+			pool.invoke(new BSimChemicalField.LineTask(0, cells.size(), CELLS_PER_TASK, body));
+		}
+	}
+
+	/** Ends the tick: adds what each bacterium added to the fields, in the order of the bacteria. */
+	public void end() {
+		for(int f=0;f<fields.length;f++) {
+			BSimChemicalField field = fields[f];
+			double[] q = field.quantity;
+			int[] b = box[f];
+			double[] a = added[f];
+			for(int i=0;i<cells;i++) {
+				if(a[i] != 0) q[b[i]] += a[i];
+			}
+			for(int i=0;i<cells;i++) {
+				if(a[i] == 0) continue;
+				if(q[b[i]] < 0) q[b[i]] = 0;
+				field.markLiveBox(b[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package bsim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Updates chemical fields at their own rates rather than once per tick of the simulation, so that the timestep
+ * of the mechanics (sim.getDt()) need not be limited by the stability of the explicit diffusion, and slowly
+ * changing fields need not be updated every tick. Call update() once per tick from the ticker, in place of
+ * field.update():
+ *
+ * 	BSimFieldScheduler fields = new BSimFieldScheduler(sim);
+ * 	fields.add(signal);			// every tick, in as many sub-steps as its stability needs
+ * 	fields.add(nutrient, 60);		// every 60 s of simulation time
+ *
+ * A field added with an interval is advanced once per that many ticks (the interval is rounded to a whole
+ * number of ticks, at least one), by the time elapsed since its last update. Whatever the interval, the step is
+ * split into equal sub-steps no longer than field.getStableDt(). The bacteria keep adding to and reading from
+ * the fields every tick: the quantities added between the updates of a field accumulate in it, and are then
+ * diffused and decayed together, from the end of the interval.
+ *
+ * The number of ticks and sub-steps is worked out again whenever sim.getDt(), the solver or the borders change.
+ */
+public class BSimFieldScheduler {
+
+	/** Simulation the fields are associated with. */
+	protected BSim sim;
+	/** The scheduled fields, in the order in which they are updated. */
+	private List<Entry> entries = new ArrayList<Entry>();
+
+	public BSimFieldScheduler(BSim sim) {
+		this.sim = sim;
+	}
+
+	/** Schedules a field to be updated every tick, sub-stepped as needed. */
+	public void add(BSimChemicalField field) {
+		add(field, 0);
+	}
+
+	/** Schedules a field to be updated every interval seconds (or every tick, if that is longer). */
+	public void add(final BSimChemicalField field, double interval) {
+		entries.add(new Entry(interval) {
+			double stableDt() { return field.getStableDt(); }
+			void update(double dt) { field.update(dt); }
+		});
+	}
+
+	/** Schedules a set of fields to be updated every tick, sub-stepped as needed by the fastest of them. */
+	public void add(BSimChemicalFieldSet set) {
+		add(set, 0);
+	}
+
+	/** Schedules a set of fields to be updated every interval seconds (or every tick, if that is longer). */
+	public void add(final BSimChemicalFieldSet set, double interval) {
+		entries.add(new Entry(interval) {
+			double stableDt() { return set.getStableDt(); }
+			void update(double dt) { set.update(dt); }
+		});
+	}
+
+	/** Advances the fields that are due at this tick. */
+	public void update() {
+		double dt = sim.getDt();
+		for(Entry e : entries) {
+			e.plan(dt);
+			if(++e.elapsed < e.ticks) continue;
+			e.elapsed = 0;
+			for(int s=0;s<e.substeps;s++) e.update(e.step);
+		}
+	}
+
+	/** Returns the number of field updates made per tick at the current timestep, on average. */
+	public double getUpdatesPerTick() {
+		double updates = 0;
+		for(Entry e : entries) {
+			e.plan(sim.getDt());
+			updates += (double)e.substeps/e.ticks;
+		}
+		return updates;
+	}
+
+	/** A scheduled field, and its current plan: sub-steps of length step every ticks ticks. */
+	private static abstract class Entry {
+		final double interval;
+		int ticks, substeps, elapsed;
+		double step;
+		/* The tick and stable timesteps the plan was made for */
+		private double plannedDt = Double.NaN, plannedStableDt = Double.NaN;
+
+		Entry(double interval) {
+			this.interval = interval;
+		}
+
+		abstract double stableDt();
+		abstract void update(double dt);
+
+		void plan(double dt) {
+			double stable = stableDt();
+			if(dt == plannedDt && stable == plannedStableDt) return;
+			plannedDt = dt;
+			plannedStableDt = stable;
+			ticks = Math.max(1, (int)Math.round(interval/dt));
+			double span = ticks*dt;
+			// Allow for round-off in span/stable, so that a stable dt equal to the tick is not split in two
+			substeps = Math.max(1, (int)Math.ceil(span/stable*(1 - 1e-12)));
+			step = span/substeps;
+			if(elapsed >= ticks) elapsed = ticks - 1;
+		}
+	}
+}
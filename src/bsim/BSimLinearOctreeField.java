@@ -0,0 +1,397 @@
+package bsim;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Octree chemical field stored as arrays (a linear octree): only the leaves are kept, in Morton (z-order), with
+ * their quantities, depths and positions in primitive arrays, and the leaves across each of their six faces in
+ * a precomputed table of indices. Diffusion and decay are then flat loops over the arrays, and the leaf at a
+ * position is found from its Morton code rather than by descending the tree.
+ *
+ * It is built from a BSimOctreeField, e.g. once that has been fitted to a mesh with setNodestoMesh(), and takes
+ * the quantities of its leaves. The outer faces of the root are closed (no flux), as in BSimOctreeField.
+ *
+ * Positions are integer coordinates on the grid of the deepest leaves (maxDepth): leaf i, of depth depth[i],
+ * spans [x[i], x[i] + 2^(maxDepth - depth[i])) in x, and so on.
+ *
+ * With setThreads(), diffuse() and decay() run over chunks of the leaves in parallel; the results do not
+ * depend on the number of threads.
+ */
+public class BSimLinearOctreeField {
+
+	/** Deepest depth for which the Morton codes fit in a long. */
+	public static final int MAX_DEPTH = 20;
+	/** Depth of the grid of the index used by locate(), at most. */
+	private static final int INDEX_DEPTH = 6;
+
+	/** Corner of the root with the lowest coordinates, and its length. */
+	protected Vector3d origin;
+	protected double length;
+	/** Depth of the deepest leaves. */
+	protected int maxDepth;
+	/** Number of leaves. */
+	protected int n;
+	/** Per leaf, in Morton order: depth, grid coordinates of the lowest corner, Morton code of that corner. */
+	protected int[] depth, x, y, z;
+	protected long[] code;
+	/** Per leaf: number of molecules, and volume (microns^3). */
+	protected double[] quantity, volume;
+	/** Buffer for the updated quantities in diffuse(), which is then swapped with quantity. */
+	double[] next;
+	/**
+	 * The leaves across each face: those of face f (0 +x, 1 -x, 2 +y, 3 -y, 4 +z, 5 -z, as BSimOctreeField)
+	 * of leaf i are neighbour[k] for k from faceStart[6*i + f] to faceStart[6*i + f + 1] - 1, and
+	 * conductance[k] is the area of the shared face over the distance between the centres (microns).
+	 */
+	protected int[] faceStart, neighbour;
+	protected double[] conductance;
+	/** Optional thread pool for parallel updates; null for sequential updates. */
+	private ForkJoinPool pool;
+	/** Number of leaves updated by each task of a parallel update. */
+	private static final int LEAVES_PER_TASK = 4096;
+	/** The first leaf in each cell of the grid of depth indexDepth, by Morton code of the cell, and one more. */
+	private int indexDepth;
+	private int[] index;
+
+	/**
+	 * Creates the linear octree of the leaves of a BSimOctreeField.
+	 * @param root The root of the tree (made with its root constructor).
+	 */
+	public BSimLinearOctreeField(BSimOctreeField root) {
+		length = root.getLength();
+		origin = new Vector3d(root.getCentre());
+		origin.sub(new Vector3d(length/2, length/2, length/2));
+		maxDepth = deepest(root, 0);
+		if(maxDepth > MAX_DEPTH) throw new IllegalArgumentException("Octree deeper than " + MAX_DEPTH + ": " + maxDepth);
+
+		n = countLeaves(root);
+		depth = new int[n];
+		x = new int[n];
+		y = new int[n];
+		z = new int[n];
+		code = new long[n];
+		quantity = new double[n];
+		volume = new double[n];
+		next = new double[n];
+		collectLeaves(root, 0, 0, 0, 0, 0);
+
+		buildIndex();
+		buildNeighbours();
+	}
+
+	/** Whether a node of a BSimOctreeField has no children (the root constructor adds empty ones). */
+	static boolean isLeaf(BSimOctreeField t) {
+		return t.subNodes[0] == null || t.subNodes[0].centre == null;
+	}
+
+	/**
+	 * The child of a BSimOctreeField node in Morton order m (bit 0 +x, bit 1 +y, bit 2 +z): its children are
+	 * numbered with bit 0 +x, bit 1 -y and bit 2 +z (see BSimOctreeField.setKids()).
+	 */
+	static int treeChild(int m) {
+		return (m & 1) | ((~m & 2)) | (m & 4);
+	}
+
+	private static int deepest(BSimOctreeField t, int d) {
+		if(isLeaf(t)) return d;
+		int max = d;
+		for(int m=0;m<8;m++) max = Math.max(max, deepest(t.subNodes[treeChild(m)], d+1));
+		return max;
+	}
+
+	private static int countLeaves(BSimOctreeField t) {
+		if(isLeaf(t)) return 1;
+		int c = 0;
+		for(int m=0;m<8;m++) c += countLeaves(t.subNodes[treeChild(m)]);
+		return c;
+	}
+
+	/** Appends the leaves below node t, of depth d and grid coordinates (i,j,k) at that depth, from leaf l. */
+	private int collectLeaves(BSimOctreeField t, int d, int i, int j, int k, int l) {
+		if(isLeaf(t)) {
+			int shift = maxDepth - d;
+			depth[l] = d;
+			x[l] = i << shift;
+			y[l] = j << shift;
+			z[l] = k << shift;
+			code[l] = morton(x[l], y[l], z[l]);
+			quantity[l] = t.quantity;
+			volume[l] = Math.pow(leafLength(l), 3);
+			return l + 1;
+		}
+		// Children in Morton order, so that the leaves come out sorted by code
+		for(int m=0;m<8;m++) {
+			l = collectLeaves(t.subNodes[treeChild(m)], d+1, 2*i + (m & 1), 2*j + ((m >> 1) & 1), 2*k + (m >> 2), l);
+		}
+		return l;
+	}
+
+	/** The Morton code of grid coordinates (x,y,z): their bits interleaved, x lowest. */
+	static long morton(int x, int y, int z) {
+		return spread(x) | (spread(y) << 1) | (spread(z) << 2);
+	}
+
+	/** The low 21 bits of v, each moved to every third bit. */
+	private static long spread(int v) {
+		long s = v & 0x1fffffL;
+		s = (s | (s << 32)) & 0x1f00000000ffffL;
+		s = (s | (s << 16)) & 0x1f0000ff0000ffL;
+		s = (s | (s << 8)) & 0x100f00f00f00f00fL;
+		s = (s | (s << 4)) & 0x10c30c30c30c30c3L;
+		s = (s | (s << 2)) & 0x1249249249249249L;
+		return s;
+	}
+
+	private void buildIndex() {
+		indexDepth = Math.min(maxDepth, INDEX_DEPTH);
+		int cells = 1 << (3*indexDepth);
+		int shift = 3*(maxDepth - indexDepth);
+		index = new int[cells + 1];
+		int l = 0;
+		for(int c=0;c<cells;c++) {
+			// The leaf containing the first point of the cell: the last leaf starting at or before it
+			long start = (long)c << shift;
+			while(l + 1 < n && code[l + 1] <= start) l++;
+			index[c] = l;
+		}
+		index[cells] = n;
+	}
+
+	/** Returns the leaf containing the grid point with the given Morton code. */
+	private int leafAt(long c) {
+		int cell = (int)(c >>> (3*(maxDepth - indexDepth)));
+		// The leaves of the cell start at index[cell]; the leaf wanted is the last starting at or before c
+		int lo = index[cell], hi = Math.min(index[cell + 1], n - 1);
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(code[mid] <= c) lo = mid;
+			else hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/** Fills in the face table, from the leaves across each face of each leaf. */
+	private void buildNeighbours() {
+		faceStart = new int[6*n + 1];
+		int[] found = new int[16];
+		double[] weights = new double[16];
+		int count = 0;
+		neighbour = new int[6*n];
+		conductance = new double[6*n];
+		int side = 1 << maxDepth;
+		for(int i=0;i<n;i++) {
+			int size = 1 << (maxDepth - depth[i]);
+			for(int f=0;f<6;f++) {
+				faceStart[6*i + f] = count;
+				int axis = f/2;
+				boolean up = (f % 2) == 0;
+				int[] cell = {x[i], y[i], z[i]};
+				cell[axis] += up ? size : -size;
+				if(cell[axis] < 0 || cell[axis] >= side) continue;
+
+				// The leaves of the region of the same size across the face that touch it
+				int m = 0;
+				int first = leafAt(morton(cell[0], cell[1], cell[2]));
+				if(depth[first] <= depth[i]) {
+					found[m] = first;
+					weights[m] = faceConductance(i, first);
+					m++;
+				} else {
+					long end = morton(cell[0], cell[1], cell[2]) + ((long)size*size*size);
+					for(int j=first;j<n && code[j]<end;j++) {
+						int[] c = {x[j], y[j], z[j]};
+						int touching = up ? cell[axis] : cell[axis] + size - (1 << (maxDepth - depth[j]));
+						if(c[axis] != touching) continue;
+						if(m == found.length) {
+							found = Arrays.copyOf(found, 2*m);
+							weights = Arrays.copyOf(weights, 2*m);
+						}
+						found[m] = j;
+						weights[m] = faceConductance(i, j);
+						m++;
+					}
+				}
+				if(count + m > neighbour.length) {
+					neighbour = Arrays.copyOf(neighbour, Math.max(2*neighbour.length, count + m));
+					conductance = Arrays.copyOf(conductance, neighbour.length);
+				}
+				System.arraycopy(found, 0, neighbour, count, m);
+				System.arraycopy(weights, 0, conductance, count, m);
+				count += m;
+			}
+		}
+		faceStart[6*n] = count;
+		neighbour = Arrays.copyOf(neighbour, count);
+		conductance = Arrays.copyOf(conductance, count);
+	}
+
+	/** Area of the face shared by leaves i and j (that of the smaller) over the distance between their centres. */
+	private double faceConductance(int i, int j) {
+		double a = leafLength(i), b = leafLength(j);
+		double side = Math.min(a, b);
+		return side*side/((a + b)/2);
+	}
+
+	/** Returns the number of leaves. */
+	public int size() { return n; }
+
+	/** Returns the depth of the deepest leaves. */
+	public int getMaxDepth() { return maxDepth; }
+
+	/** Returns the depth of leaf i. */
+	public int getDepth(int i) { return depth[i]; }
+
+	/** Returns the length of leaf i (microns). */
+	public double leafLength(int i) {
+		return length/(1 << depth[i]);
+	}
+
+	/** Returns the centre of leaf i. */
+	public Vector3d getCentre(int i) {
+		double unit = length/(1 << maxDepth);
+		double half = leafLength(i)/2;
+		return new Vector3d(origin.x + x[i]*unit + half, origin.y + y[i]*unit + half, origin.z + z[i]*unit + half);
+	}
+
+	/** Returns the quantity of chemical in leaf i. */
+	public double getQuantity(int i) { return quantity[i]; }
+
+	/** Returns the concentration in leaf i in molecules/(micron)^3. */
+	public double getConc(int i) { return quantity[i]/volume[i]; }
+
+	/** Returns the total quantity of chemical in the field. */
+	public double totalQuantity() {
+		double t = 0;
+		for(int i=0;i<n;i++) t += quantity[i];
+		return t;
+	}
+
+	/** Returns the leaves across face f of leaf i (see faceStart). */
+	public int[] getNeighbours(int i, int f) {
+		return Arrays.copyOfRange(neighbour, faceStart[6*i + f], faceStart[6*i + f + 1]);
+	}
+
+	/** Returns the leaf containing position v, or -1 if v is outside the root. */
+	public int locate(Vector3d v) {
+		double unit = length/(1 << maxDepth);
+		int side = 1 << maxDepth;
+		int i = (int)Math.floor((v.x - origin.x)/unit);
+		int j = (int)Math.floor((v.y - origin.y)/unit);
+		int k = (int)Math.floor((v.z - origin.z)/unit);
+		if(i < 0 || j < 0 || k < 0 || i >= side || j >= side || k >= side) return -1;
+		return leafAt(morton(i, j, k));
+	}
+
+	/** Gets the concentration at position v in molecules/(micron)^3, 0 outside the root. */
+	public double getConc(Vector3d v) {
+		int i = locate(v);
+		return (i < 0) ? 0 : getConc(i);
+	}
+
+	/** Adds a quantity of chemical to the leaf containing position v (nothing outside the root). */
+	public void addQuantity(Vector3d v, double q) {
+		int i = locate(v);
+		if(i < 0) return;
+		quantity[i] += q;
+		if(quantity[i] < 0) quantity[i] = 0;
+	}
+
+	/** Sets the quantity of chemical in leaf i. */
+	public void setQuantity(int i, double q) {
+		quantity[i] = q;
+	}
+
+	/**
+	 * Diffuses the chemical between neighbouring leaves over a timestep dt. Over a face of area A between
+	 * leaves whose centres are d apart, whatever their sizes, molecules flow at D*A*(c' - c)/d (Fick's law),
+	 * from the concentrations before the step into a second buffer, which then becomes the field.
+	 * Each leaf sums the flows over its own faces, so the leaves can be updated in any order, or in parallel.
+	 * The flow over a face is computed from either side as the exact negative of the other, so the total
+	 * quantity is conserved (to round-off in the sums).
+	 * @param diffusivity The diffusivity in (microns)^2/s.
+	 * @param dt Time step in seconds.
+	 */
+	public void diffuse(double diffusivity, double dt) {
+		final double[] before = quantity, after = next;
+		final double k = diffusivity*dt;
+		forLeaves(new BSimChemicalField.LineBody() {
+			public void run(int lo, int hi) {
+				diffuseLeaves(before, after, lo, hi, k);
+			}
+		});
+		quantity = after;
+		next = before;
+	}
+
+	/** Update leaves [lo, hi) from before into after, with k = D*dt. */
+	private void diffuseLeaves(double[] before, double[] after, int lo, int hi, double k) {
+		for(int i=lo;i<hi;i++) {
+			double c = before[i]/volume[i];
+			double q = before[i];
+			for(int e=faceStart[6*i];e<faceStart[6*i + 6];e++) {
+				int j = neighbour[e];
+				q += k*conductance[e]*(before[j]/volume[j] - c);
+			}
+			after[i] = q;
+		}
+	}
+
+	/**
+	 * Returns the longest timestep for which diffuse() is stable: no leaf may give away more than it holds,
+	 * i.e. D*dt*(sum of A/d over its faces) &lt;= its volume.
+	 */
+	public double getStableDt(double diffusivity) {
+		double dt = Double.POSITIVE_INFINITY;
+		for(int i=0;i<n;i++) {
+			double g = 0;
+			for(int e=faceStart[6*i];e<faceStart[6*i + 6];e++) g += conductance[e];
+			if(g > 0) dt = Math.min(dt, volume[i]/(diffusivity*g));
+		}
+		return dt;
+	}
+
+	/**
+	 * Decays the chemical in every leaf.
+	 * @param decayRate Decay rate of the chemical (seconds^-1).
+	 * @param dt Timestep to use (seconds).
+	 */
+	public void decay(double decayRate, double dt) {
+		final double factor = 1 - decayRate*dt;
+		forLeaves(new BSimChemicalField.LineBody() {
+			public void run(int lo, int hi) {
+				for(int i=lo;i<hi;i++) quantity[i] *= factor;
+			}
+		});
+	}
+
+	/**
+	 * Enables parallel updates on the given number of threads; threads <= 0 disables it.
+	 * Call shutdown() (or setThreads(0)) to release the threads when the field is no longer needed.
+	 */
+	public void setThreads(int threads) {
+		if(pool != null) pool.shutdown();
+		pool = (threads > 0) ? new ForkJoinPool(threads) : null;
+	}
+
+	/** Returns the number of threads used to update the field, 0 if it is updated sequentially. */
+	public int getThreads() {
+		return (pool == null) ? 0 : pool.getParallelism();
+	}
+
+	/** Releases the threads used for parallel updates; the field reverts to sequential updates. */
+	public void shutdown() {
+		setThreads(0);
+	}
+
+	/** Run the body over the leaves [0, n), in parallel chunks if there is a pool. */
+	private void forLeaves(BSimChemicalField.LineBody body) {
+		if(pool == null) {
+			body.run(0, n);
+		} else {
+			pool.invoke(new BSimChemicalField.LineTask(0, n, LEAVES_PER_TASK, body));
+		}
+	}
+}
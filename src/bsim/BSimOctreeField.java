@@ -2,7 +2,12 @@ package bsim;
 
 import javax.vecmath.Vector3d;
 import java.awt.Color;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import bsim.geometry.BSimMesh;
+import bsim.geometry.BSimMeshUtils;
 import bsim.geometry.BSimTriangle;
 
 
@@ -12,6 +17,8 @@ import bsim.geometry.BSimTriangle;
  * BSimOctreeField object needs to be created by the user, it subdivides into an appropriate 
  * shape with the fitFieldtoMesh() method. Decay and diffusion are performed through post 
  * order traversals. 
+ * Once fitted, a tree can be converted to a BSimLinearOctreeField, which stores the leaves in arrays
+ * and updates them with flat loops.
  */
 public class BSimOctreeField
 
@@ -38,6 +45,9 @@ public class BSimOctreeField
 	/** For checking in division algorithm. */
 	public boolean processed = false; 
 
+	/** Nodes testing more triangles than this have their children fitted as separate tasks by fitFieldtoMesh(). */
+	private static final int TRIANGLES_PER_TASK = 64;
+
 	/** Neighbors of an octree node (necessary for the diffusion function), computed with setKids() function. */
 	private BSimOctreeField neighbors[] = new BSimOctreeField[6];
 	 
@@ -231,6 +241,7 @@ public class BSimOctreeField
 	 * Fits octreeField against a mesh and splits into subNodes when there is a collision with the mesh boundary
 	 * Creates a finer octree structure each time this function is called. Should be called
 	 * in a loop,with the number of repetitions being the maximum depth of the octree structure
+	 * (or see fitFieldtoMesh(), which fits all the depths in one call, in parallel)
 	 * @param theMesh - BSimMesh object that the OctreeField is going to be fit to
 	 * @param t - the OctreeField that will be fit to the mesh
 	 */
@@ -334,6 +345,108 @@ public class BSimOctreeField
 		}
 	}
 
+	/**
+	 * Fits the octree to a mesh in one call: every node that a triangle of the mesh intersects (see
+	 * BSimMeshUtils.intersectTriangleAAB()) is split, down to maxDepth. A node only tests the triangles that
+	 * intersected its parent, so the lists shrink with depth, and a triangle is first checked against the node
+	 * by its bounding box. Nodes that are already split are descended into, not split again.
+	 * @param theMesh The mesh to fit to.
+	 * @param maxDepth Depth of the smallest nodes.
+	 * @param threads Number of threads splitting the subtrees in parallel (0 to fit sequentially).
+	 */
+	public void fitFieldtoMesh(BSimMesh theMesh, int maxDepth, int threads) {
+		List<BSimTriangle> faces = theMesh.getFaces();
+		// Bounding boxes of the triangles: min x, y, z then max x, y, z
+		double[] bounds = new double[6*faces.size()];
+		int[] all = new int[faces.size()];
+		for(int f=0;f<faces.size();f++) {
+			all[f] = f;
+			for(int a=0;a<3;a++) {
+				bounds[6*f + a] = Double.POSITIVE_INFINITY;
+				bounds[6*f + 3 + a] = Double.NEGATIVE_INFINITY;
+			}
+			for(int v=0;v<3;v++) {
+				Vector3d p = faces.get(f).getVertCoords(v);
+				double[] c = {p.x, p.y, p.z};
+				for(int a=0;a<3;a++) {
+					bounds[6*f + a] = Math.min(bounds[6*f + a], c[a]);
+					bounds[6*f + 3 + a] = Math.max(bounds[6*f + 3 + a], c[a]);
+				}
+			}
+		}
+		FitTask root = new FitTask(this, faces, bounds, all, maxDepth, threads > 0);
+		if(threads > 0) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(root);
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			root.compute();
+		}
+	}
+
+	/** Fits the octree to a mesh, down to maxDepth, on one thread (see fitFieldtoMesh(BSimMesh, int, int)). */
+	public void fitFieldtoMesh(BSimMesh theMesh, int maxDepth) {
+		fitFieldtoMesh(theMesh, maxDepth, 0);
+	}
+
+	/** Fits the subtree of a node, given the triangles that intersect its parent (by index in faces). */
+	private static class FitTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final BSimOctreeField node;
+		final List<BSimTriangle> faces;
+		final double[] bounds;
+		final int[] candidates;
+		final int maxDepth;
+		final boolean parallel;
+
+		FitTask(BSimOctreeField node, List<BSimTriangle> faces, double[] bounds, int[] candidates, int maxDepth, boolean parallel) {
+			this.node = node;
+			this.faces = faces;
+			this.bounds = bounds;
+			this.candidates = candidates;
+			this.maxDepth = maxDepth;
+			this.parallel = parallel;
+		}
+
+		@Override
+		protected void compute() {
+			if(node.depth >= maxDepth) return;
+			int[] hits = intersecting();
+			if(hits.length == 0) return;
+			if(node.subNodes[0] == null || node.subNodes[0].centre == null) node.setKids();
+
+			FitTask[] children = new FitTask[8];
+			for(int i=0;i<8;i++) children[i] = new FitTask(node.subNodes[i], faces, bounds, hits, maxDepth, parallel);
+			if(parallel && hits.length > TRIANGLES_PER_TASK) {
+				invokeAll(children);
+			} else {
+				for(FitTask c : children) c.compute();
+			}
+		}
+
+		/** The candidates that intersect the node. */
+		private int[] intersecting() {
+			double h = node.length/2;
+			double[] lo = {node.centre.x - h, node.centre.y - h, node.centre.z - h};
+			double[] hi = {node.centre.x + h, node.centre.y + h, node.centre.z + h};
+			Vector3d dim = new Vector3d(node.length, node.length, node.length);
+			int[] hits = new int[candidates.length];
+			int count = 0;
+			for(int f : candidates) {
+				boolean apart = false;
+				for(int a=0;a<3;a++) {
+					if(bounds[6*f + a] > hi[a] || bounds[6*f + 3 + a] < lo[a]) apart = true;
+				}
+				if(!apart && BSimMeshUtils.intersectTriangleAAB(faces.get(f), node.centre, dim)) hits[count++] = f;
+			}
+			return Arrays.copyOf(hits, count);
+		}
+	}
+
 	//////////////////////////////////////////////////////////////////////////////
 	//Traverser's - recursive functions that go through octree structure in different ways//
 	
@@ -439,7 +552,9 @@ public class BSimOctreeField
 	
 	/**
 	 * Diffuses chemicals through whole the octreeField structure, using Fick's law to determine
-	 * how much of the chemical gets pushed into neighboring nodes over each time iteration
+	 * how much of the chemical gets pushed into neighboring nodes over each time iteration.
+	 * The quantities are updated in place, in the order of the traversal; for updates that do not depend on
+	 * the order, between leaves of any size, and in parallel, see BSimLinearOctreeField.diffuse().
 	 * @param diffusivity The diffusivity in (microns)^2/s.
 	 * @param Dt Time step in seconds.
 	 * @param depth Maximum depth to go to in diffusion.
@@ -0,0 +1,135 @@
+package bsim;
+
+/**
+ * Complex fast Fourier transform of a fixed length, for the spectral solver of BSimChemicalField.
+ * Powers of two use the iterative radix-2 algorithm; other lengths use Bluestein's algorithm (the transform as
+ * a convolution, of a power of two length), so any length is O(n log n).
+ *
+ * A plan holds only tables, and can be shared between threads; each thread passes its own work arrays.
+ */
+class FFT {
+
+	/** Length of the transform. */
+	final int n;
+	/** Tables for the radix-2 transform of length m (n, or the convolution length): cos and sin of 2*pi*k/m. */
+	private final int m;
+	private final double[] cos, sin;
+	private final int[] reverse;
+	/** Bluestein: the chirp exp(-i*pi*j^2/n), and the transform of its conjugate, padded to m. */
+	private final double[] chirpRe, chirpIm, filterRe, filterIm;
+
+	FFT(int n) {
+		this.n = n;
+		boolean powerOfTwo = (n & (n - 1)) == 0;
+		int size = 1;
+		while(size < (powerOfTwo ? n : 2*n - 1)) size <<= 1;
+		this.m = size;
+		cos = new double[m/2];
+		sin = new double[m/2];
+		for(int k=0;k<m/2;k++) {
+			cos[k] = Math.cos(2*Math.PI*k/m);
+			sin[k] = Math.sin(2*Math.PI*k/m);
+		}
+		reverse = new int[m];
+		int bits = Integer.numberOfTrailingZeros(m);
+		for(int k=0;k<m;k++) reverse[k] = (bits == 0) ? 0 : Integer.reverse(k) >>> (32 - bits);
+
+		if(powerOfTwo) {
+			chirpRe = chirpIm = filterRe = filterIm = null;
+		} else {
+			chirpRe = new double[n];
+			chirpIm = new double[n];
+			for(int j=0;j<n;j++) {
+				// j^2 mod 2n keeps the angle accurate for long transforms
+				double angle = Math.PI*((long)j*j % (2L*n))/n;
+				chirpRe[j] = Math.cos(angle);
+				chirpIm[j] = -Math.sin(angle);
+			}
+			filterRe = new double[m];
+			filterIm = new double[m];
+			filterRe[0] = chirpRe[0];
+			filterIm[0] = -chirpIm[0];
+			for(int j=1;j<n;j++) {
+				filterRe[j] = filterRe[m-j] = chirpRe[j];
+				filterIm[j] = filterIm[m-j] = -chirpIm[j];
+			}
+			radix2(filterRe, filterIm);
+		}
+	}
+
+	/** Length of each of the work arrays that transform() needs. */
+	int workLength() {
+		return (chirpRe == null) ? 0 : m;
+	}
+
+	/**
+	 * Transform (re, im) in place: forward, X_k = sum_j x_j exp(-2*pi*i*j*k/n), or inverse, with the opposite sign
+	 * (neither is normalised). workRe and workIm are scratch, of workLength().
+	 */
+	void transform(double[] re, double[] im, boolean inverse, double[] workRe, double[] workIm) {
+		if(inverse) {
+			for(int j=0;j<n;j++) im[j] = -im[j];
+		}
+		if(chirpRe == null) {
+			radix2(re, im);
+		} else {
+			bluestein(re, im, workRe, workIm);
+		}
+		if(inverse) {
+			for(int j=0;j<n;j++) im[j] = -im[j];
+		}
+	}
+
+	/** Forward transform of length m, in place. */
+	private void radix2(double[] re, double[] im) {
+		for(int k=0;k<m;k++) {
+			int r = reverse[k];
+			if(r > k) {
+				double t = re[k]; re[k] = re[r]; re[r] = t;
+				t = im[k]; im[k] = im[r]; im[r] = t;
+			}
+		}
+		for(int size=2;size<=m;size<<=1) {
+			int half = size >> 1;
+			int step = m / size;
+			for(int i=0;i<m;i+=size) {
+				for(int j=0;j<half;j++) {
+					double wr = cos[j*step], wi = -sin[j*step];
+					int a = i + j, b = a + half;
+					double xr = re[b]*wr - im[b]*wi;
+					double xi = re[b]*wi + im[b]*wr;
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+				}
+			}
+		}
+	}
+
+	/** Forward transform of length n by Bluestein's algorithm: a circular convolution with the chirp, of length m. */
+	private void bluestein(double[] re, double[] im, double[] wRe, double[] wIm) {
+		for(int j=0;j<n;j++) {
+			wRe[j] = re[j]*chirpRe[j] - im[j]*chirpIm[j];
+			wIm[j] = re[j]*chirpIm[j] + im[j]*chirpRe[j];
+		}
+		for(int j=n;j<m;j++) {
+			wRe[j] = 0;
+			wIm[j] = 0;
+		}
+		radix2(wRe, wIm);
+		// Multiply by the filter, and conjugate, for the inverse transform by the forward one
+		for(int k=0;k<m;k++) {
+			double r = wRe[k]*filterRe[k] - wIm[k]*filterIm[k];
+			double i = wRe[k]*filterIm[k] + wIm[k]*filterRe[k];
+			wRe[k] = r;
+			wIm[k] = -i;
+		}
+		radix2(wRe, wIm);
+		for(int k=0;k<n;k++) {
+			double cr = wRe[k]/m, ci = -wIm[k]/m;
+			re[k] = cr*chirpRe[k] - ci*chirpIm[k];
+			im[k] = cr*chirpIm[k] + ci*chirpRe[k];
+		}
+	}
+}
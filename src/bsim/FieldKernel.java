@@ -0,0 +1,93 @@
+package bsim;
+
+/**
+ * The loops over the boxes of the chemical fields that are worth vectorising: the interior of the diffusion
+ * stencil, and the field-wide scaling (decay), sum and addition.
+ *
+ * INSTANCE is chosen when the class is loaded. It is VectorFieldKernel (built from src-vector with the JDK
+ * Vector API) if that is on the class path and the jdk.incubator.vector module is available, i.e. the JVM was
+ * started with --add-modules jdk.incubator.vector, and otherwise the plain loops of Scalar.
+ * Setting the system property bsim.vector=false selects Scalar regardless.
+ *
+ * All the kernels give exactly the same results as Scalar, except sum(), which may add in a different order.
+ */
+abstract class FieldKernel {
+
+	static final FieldKernel INSTANCE = select();
+
+	private static FieldKernel select() {
+		if(Boolean.parseBoolean(System.getProperty("bsim.vector", "true"))) {
+			try {
+				return (FieldKernel)Class.forName("bsim.VectorFieldKernel").getDeclaredConstructor().newInstance();
+			} catch(Throwable e) {
+				// Not built, or the module is not available: fall back to the scalar loops
+			}
+		}
+		return new Scalar();
+	}
+
+	/** A short description of the kernel, e.g. for benchmarks. */
+	abstract String name();
+
+	/**
+	 * The explicit diffusion update of the boxes [from, to) of a line along x, whose neighbours in x are the
+	 * adjacent boxes, and in y and z are at the given offsets, with the given weights:
+	 * 	after[b] = (keep*before[b] + c*(before[b-1] + before[b+1]) + wYA*before[b+oYA] + ... + wZB*before[b+oZB])*factor
+	 */
+	abstract void stencil7(double[] before, double[] after, int from, int to, double keep, double c,
+			double wYA, int oYA, double wYB, int oYB, double wZA, int oZA, double wZB, int oZB, double factor);
+
+	/** As stencil7(), without the z neighbours (for a single layer of boxes). */
+	abstract void stencil5(double[] before, double[] after, int from, int to, double keep, double c,
+			double wYA, int oYA, double wYB, int oYB, double factor);
+
+	/** q[b] *= factor for b in [from, to). */
+	abstract void scale(double[] q, int from, int to, double factor);
+
+	/** The sum of q[from ... to-1]. */
+	abstract double sum(double[] q, int from, int to);
+
+	/** q[b] += add for b in [from, to), clamped at zero (as BSimChemicalField.addQuantity()). */
+	abstract void addClamped(double[] q, int from, int to, double add);
+
+	/** The plain loops, which the JIT may vectorise itself. */
+	static class Scalar extends FieldKernel {
+
+		String name() {
+			return "scalar";
+		}
+
+		void stencil7(double[] before, double[] after, int from, int to, double keep, double c,
+				double wYA, int oYA, double wYB, int oYB, double wZA, int oZA, double wZB, int oZB, double factor) {
+			for(int b=from;b<to;b++) {
+				after[b] = (keep*before[b] + c*(before[b-1] + before[b+1])
+						+ wYA*before[b+oYA] + wYB*before[b+oYB] + wZA*before[b+oZA] + wZB*before[b+oZB])*factor;
+			}
+		}
+
+		void stencil5(double[] before, double[] after, int from, int to, double keep, double c,
+				double wYA, int oYA, double wYB, int oYB, double factor) {
+			for(int b=from;b<to;b++) {
+				after[b] = (keep*before[b] + c*(before[b-1] + before[b+1])
+						+ wYA*before[b+oYA] + wYB*before[b+oYB])*factor;
+			}
+		}
+
+		void scale(double[] q, int from, int to, double factor) {
+			for(int b=from;b<to;b++) q[b] *= factor;
+		}
+
+		double sum(double[] q, int from, int to) {
+			double t = 0;
+			for(int b=from;b<to;b++) t += q[b];
+			return t;
+		}
+
+		void addClamped(double[] q, int from, int to, double add) {
+			for(int b=from;b<to;b++) {
+				q[b] += add;
+				if(q[b] < 0) q[b] = 0;
+			}
+		}
+	}
+}
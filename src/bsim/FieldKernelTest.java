@@ -0,0 +1,107 @@
+package bsim;
+
+import java.util.Random;
+
+/**
+ * Checks the selected FieldKernel (see FieldKernel.INSTANCE) against the scalar loops: the stencils, scale and
+ * addClamped must give bit-identical results, and sum the same to round-off. With the argument "bench" it
+ * also times the kernels, and the update of a chemical field, against the scalar loops.
+ *
+ * To test the Vector API kernel, build src-vector and run with
+ * 	java --add-modules jdk.incubator.vector -cp ... bsim.FieldKernelTest bench
+ *
+ * Exits with a non-zero status if a check fails.
+ */
+public class FieldKernelTest {
+
+	public static void main(String[] args) {
+		FieldKernel kernel = FieldKernel.INSTANCE;
+		FieldKernel scalar = new FieldKernel.Scalar();
+		System.out.println("Kernel: " + kernel.name());
+		Random random = new Random(11);
+		int failures = 0;
+
+		// Lengths around multiples of the vector width, and offsets as in a field
+		for(int n : new int[] {1, 2, 3, 7, 8, 9, 15, 16, 17, 33, 100, 1027}) {
+			int nx = n + 2;
+			double[] before = new double[5*nx];
+			for(int b=0;b<before.length;b++) before[b] = random.nextDouble() - 0.1;
+			int line = 2*nx;
+			double[] w = {random.nextDouble(), random.nextDouble(), random.nextDouble(), random.nextDouble()};
+
+			double[] expected = new double[before.length], actual = new double[before.length];
+			scalar.stencil7(before, expected, line+1, line+nx-1, 0.3, 0.1, w[0], nx, w[1], -nx, w[2], 2*nx, w[3], -2*nx, 0.99);
+			kernel.stencil7(before, actual, line+1, line+nx-1, 0.3, 0.1, w[0], nx, w[1], -nx, w[2], 2*nx, w[3], -2*nx, 0.99);
+			failures += check("stencil7", n, expected, actual);
+
+			scalar.stencil5(before, expected, line+1, line+nx-1, 0.3, 0.1, w[0], nx, w[1], -nx, 0.99);
+			kernel.stencil5(before, actual, line+1, line+nx-1, 0.3, 0.1, w[0], nx, w[1], -nx, 0.99);
+			failures += check("stencil5", n, expected, actual);
+
+			expected = before.clone();
+			actual = before.clone();
+			scalar.scale(expected, 1, 1+n, 0.97);
+			kernel.scale(actual, 1, 1+n, 0.97);
+			failures += check("scale", n, expected, actual);
+
+			scalar.addClamped(expected, 1, 1+n, -0.05);
+			kernel.addClamped(actual, 1, 1+n, -0.05);
+			failures += check("addClamped", n, expected, actual);
+
+			double s = scalar.sum(before, 1, 1+n), t = kernel.sum(before, 1, 1+n);
+			if(!(Math.abs(s - t) <= 1e-12*n)) {
+				System.err.println("sum differs for " + n + " boxes: " + s + " and " + t);
+				failures++;
+			}
+		}
+
+		if(args.length > 0 && args[0].equals("bench")) bench(kernel, scalar);
+
+		System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+		if(failures > 0) System.exit(1);
+	}
+
+	private static int check(String name, int n, double[] expected, double[] actual) {
+		for(int b=0;b<expected.length;b++) {
+			if(Double.doubleToLongBits(expected[b]) != Double.doubleToLongBits(actual[b])) {
+				System.err.println(name + " differs for " + n + " boxes at " + b + ": " + expected[b] + " and " + actual[b]);
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	private static void bench(FieldKernel kernel, FieldKernel scalar) {
+		int nx = 256, ny = 256, nz = 16;
+		double[] before = new double[nx*ny*nz], after = new double[before.length];
+		for(int b=0;b<before.length;b++) before[b] = b % 17;
+		for(int round=0;round<3;round++) {
+			for(FieldKernel k : new FieldKernel[] {scalar, kernel}) {
+				long start = System.nanoTime();
+				double sink = 0;
+				for(int rep=0;rep<20;rep++) {
+					for(int l=2*ny;l<(nz-2)*ny;l++) {
+						int line = nx*l;
+						k.stencil7(before, after, line+1, line+nx-1, 0.3, 0.1, 0.1, nx, 0.1, -nx, 0.1, nx*ny, 0.1, -nx*ny, 0.99);
+					}
+					k.scale(after, 0, after.length, 0.999);
+					sink += k.sum(after, 0, after.length);
+				}
+				if(round == 2) {
+					System.out.printf("%s: %.2f ns per box (%g)%n", k.name(), (System.nanoTime() - start)/(20.0*before.length), sink);
+				}
+			}
+		}
+
+		// A whole field, with the selected kernel
+		BSim sim = new BSim();
+		sim.setDt(0.01);
+		sim.setBound(256, 256, 16);
+		BSimChemicalField field = new BSimChemicalField(sim, new int[] {nx, ny, nz}, 10, 0.1);
+		field.setConc(1);
+		for(int rep=0;rep<20;rep++) field.update();
+		long start = System.nanoTime();
+		for(int rep=0;rep<50;rep++) field.update();
+		System.out.printf("BSimChemicalField %dx%dx%d update: %.2f ms%n", nx, ny, nz, (System.nanoTime() - start)/50e6);
+	}
+}
@@ -5,7 +5,6 @@ import bsim.BSim;
 import bsim.ode.BSimOdeSystem;
 import bsim.winter2021.RectangleIntersection;
 
-import javax.vecmath.Vector2d;
 import javax.vecmath.Vector3d;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
@@ -85,6 +84,9 @@ public class BSimCapsuleBacterium {
     public static double contact_range_extension = 0.25;
     public static double contact_threshold = 4.0;
 
+    // scratch storage for accumulating pairwise forces in computeNeighbourForce()
+    private final double[] pairForce = new double[12];
+
     // stores data about the simulation so that each cell can use that information
     protected BSim sim;
 
@@ -260,6 +262,8 @@ public class BSimCapsuleBacterium {
     // We need the internal force to prevent the cell from lengthening as a result of forces acting individually
     // on the endpoints of the cell.
     // This section has not been modified from the original bsim package
+    // Movers may call this concurrently for different bacteria (see RelaxationMoverGrid.setForceThreads()),
+    // so overrides must only modify this bacterium's own state.
     public void computeSelfForce() {
         // create new number representing strength of the internal force -> initially set to zero
         double internalPotential = 0;
@@ -340,7 +344,9 @@ public class BSimCapsuleBacterium {
     // with the corner of a wall. In this case, the corner should apply a torque to the cell based on where it collides.
     // This seems complicated.
     // For now, this function should only be used to compute forces between flat walls and a bacterium
-	/** Updated to allow for different wall boundary conditions. */
+	/** Updated to allow for different wall boundary conditions.
+	 * Movers may call this concurrently for different bacteria (see RelaxationMoverGrid.setForceThreads()),
+	 * so overrides must only modify this bacterium's own state. */
     public void computeWallForce(){
         // TODO::: Ideally, there should also be a bounds check on the side NEXT to the one from which bacs can exit
         /**
@@ -427,28 +433,23 @@ public class BSimCapsuleBacterium {
     }
 
     /** dP = w + sc * u - tc * v
-     * is a vector from the second bac heading to the first
-     * sc and tc are returned so that this vector can be calculated
+     * is a vector from the second bac heading to the first, for u = x2 - x1, v = x2 - x1 (neighbour cell)
+     * and w = x1 - x1 (neighbour cell) given by their components.
+     * sc and tc are written to sctc[0] and sctc[1] so that this vector can be calculated
      * Source: Geometric Tools for Computer Graphics book, and
      * http://geomalgorithms.com/a07-_distance.html#dist3D_Segment_to_Segment
      */
-    protected double[] ClosestApproach(BSimCapsuleBacterium neighbour_bac) {
+    protected static void closestApproach(double ux, double uy, double uz, double vx, double vy, double vz,
+                                          double wx, double wy, double wz, double[] sctc) {
         double EPS = 1e-12; // machine precision value for use in checking whether quantity is zero
         // You can use it like this: value x is effectively zero if Math.abs(x)<EPS
         // so instead of writing if(x==0) you should write if(Math.abs(x)<=EPS) to ensure precision
 
-        Vector3d u = new Vector3d(); 					// define u as a vector
-        u.sub(this.x2, this.x1); 						// u = x2 - x1 = vector pointing from one endpoint to the other
-        Vector3d v = new Vector3d(); 					// define v as a vector
-        v.sub(neighbour_bac.x2, neighbour_bac.x1); 		// v = x2 - x1 (neighbour cell)
-        Vector3d w = new Vector3d(); 					// define w as a vector
-        w.sub(this.x1, neighbour_bac.x1); 				// difference between the two x1 points
-
-        double a = u.dot(u);         // always >= 0
-        double b = u.dot(v);
-        double c = v.dot(v);         // always >= 0
-        double d = u.dot(w);
-        double e = v.dot(w);
+        double a = ux * ux + uy * uy + uz * uz;         // always >= 0
+        double b = ux * vx + uy * vy + uz * vz;
+        double c = vx * vx + vy * vy + vz * vz;         // always >= 0
+        double d = ux * wx + uy * wy + uz * wz;
+        double e = vx * wx + vy * wy + vz * wz;
         double D = a * c - b * b; 	// figure out what D is by visualizing what it is     // always >= 0
         double sc = D;
         double sN = D;
@@ -505,8 +506,8 @@ public class BSimCapsuleBacterium {
         sc = (Math.abs(sN) < EPS ? 0.0 : sN / sD);
         tc = (Math.abs(tN) < EPS ? 0.0 : tN / tD);
 
-        double[] arr = {sc, tc};
-        return arr;
+        sctc[0] = sc;
+        sctc[1] = tc;
     }
 
     protected double getOrientedBoundingBoxIntersectionPerimeter(BSimCapsuleBacterium neighbour_bac, double r) {
@@ -516,15 +517,26 @@ public class BSimCapsuleBacterium {
         double bac_angle = Math.atan((x2.y - x1.y) / (x2.x - x1.x));
         double neighbour_bac_angle = Math.atan((neighbour_bac.x2.y - neighbour_bac.x1.y) / (neighbour_bac.x2.x - neighbour_bac.x1.x));
 
-        Vector2d[] rectangle_bac = RectangleIntersection.rectangle_vertices(position.x, position.y,
-                bac_length + 2 * (radius + r), 2 * (radius + r), bac_angle);
-        Vector2d[] rectangle_neighbour = RectangleIntersection.rectangle_vertices(neighbour_bac.position.x,
+        ContactScratch scratch = contactScratch.get();
+        RectangleIntersection.rectangle_vertices(position.x, position.y,
+                bac_length + 2 * (radius + r), 2 * (radius + r), bac_angle, scratch.rectangle);
+        RectangleIntersection.rectangle_vertices(neighbour_bac.position.x,
                 neighbour_bac.position.y, neighbour_bac_length + 2 * (neighbour_bac.radius + r),
-                2 * (neighbour_bac.radius + r), neighbour_bac_angle);
+                2 * (neighbour_bac.radius + r), neighbour_bac_angle, scratch.neighbourRectangle);
+
+        return RectangleIntersection.rectangle_intersection_perimeter(scratch.rectangle, scratch.neighbourRectangle, scratch.clip);
+    }
 
-        return RectangleIntersection.rectangle_intersection_perimeter(rectangle_bac, rectangle_neighbour);
+    /** Scratch storage for the neighbour force. Movers may evaluate pairs concurrently, so each thread has its own. */
+    private static final class ContactScratch {
+        final double[] closestApproach = new double[2];
+        final double[] rectangle = new double[8];
+        final double[] neighbourRectangle = new double[8];
+        final double[] clip = new double[RectangleIntersection.CLIP_SCRATCH_LENGTH];
     }
 
+    private static final ThreadLocal<ContactScratch> contactScratch = ThreadLocal.withInitial(ContactScratch::new);
+
     /*
     protected double getBoundingBoxIntersectionArea(BSimCapsuleBacterium neighbour_bac, double r) {
         double bac_radius = radius + r;
@@ -554,6 +566,15 @@ public class BSimCapsuleBacterium {
     }
      */
 
+    /** Midpoint-to-midpoint distance beyond which computeNeighbourForce() applies no force to the pair.
+     * Movers that cache neighbour pairs use this as the interaction range, so a subclass with longer ranged
+     * neighbour forces should override it too.
+     */
+    public double neighbourInteractionRange(BSimCapsuleBacterium neighbour_bac) {
+        return 0.5 * (this.L + neighbour_bac.L) + (this.radius + neighbour_bac.radius) +
+                2 * contact_range_extension;
+    }
+
     /** This method calculates between neighboring cells.
      * There are 3 forces: a collision force, a sticking force, and a filial force
      * The collision force prevents overlap of cells
@@ -562,61 +583,99 @@ public class BSimCapsuleBacterium {
      */
     // Note: The filial force is turned off (commented out)
     public void computeNeighbourForce(BSimCapsuleBacterium neighbour_bac) {
+        double[] force = pairForce;
+        force[0] = x1force.x; force[1] = x1force.y; force[2] = x1force.z;
+        force[3] = x2force.x; force[4] = x2force.y; force[5] = x2force.z;
+        force[6] = neighbour_bac.x1force.x; force[7] = neighbour_bac.x1force.y; force[8] = neighbour_bac.x1force.z;
+        force[9] = neighbour_bac.x2force.x; force[10] = neighbour_bac.x2force.y; force[11] = neighbour_bac.x2force.z;
+
+        computeNeighbourForce(neighbour_bac, force, 0, 6);
+
+        x1force.set(force[0], force[1], force[2]);
+        x2force.set(force[3], force[4], force[5]);
+        neighbour_bac.x1force.set(force[6], force[7], force[8]);
+        neighbour_bac.x2force.set(force[9], force[10], force[11]);
+    }
+
+    /** Adds s*(x, y, z) to the three force components starting at force[offset]. */
+    private static void addForce(double[] force, int offset, double s, double x, double y, double z) {
+        force[offset] += s * x;
+        force[offset + 1] += s * y;
+        force[offset + 2] += s * z;
+    }
 
-        /** Calculate vectors and distances used throughout this method */
+    /**
+     * The neighbour force for both orderings of the pair: computeNeighbourForce(neighbour_bac, force,
+     * thisOffset, neighbourOffset) followed by neighbour_bac.computeNeighbourForce(this, force, neighbourOffset,
+     * thisOffset). Movers that visit each unordered pair only once use this, to apply the same forces as movers
+     * that visit both orderings. Both orderings are evaluated even for bacteria of the same radius: the kernel
+     * is not symmetric under swapping them, e.g. closestApproach() picks a different one of several closest
+     * points for overlapping anti-parallel bacteria.
+     * Subclasses that override computeNeighbourForce() should override this too.
+     */
+    public void computeSymmetricNeighbourForce(BSimCapsuleBacterium neighbour_bac, double[] force, int thisOffset, int neighbourOffset) {
+        computeNeighbourForce(neighbour_bac, force, thisOffset, neighbourOffset);
+        neighbour_bac.computeNeighbourForce(this, force, neighbourOffset, thisOffset);
+    }
+
+    /**
+     * As computeNeighbourForce(neighbour_bac), but the forces are accumulated into an array rather than into
+     * x1force and x2force: (x1, x2) force components of this bacterium at force[thisOffset ... thisOffset + 5],
+     * and of the neighbour at force[neighbourOffset ... neighbourOffset + 5]. This lets movers evaluate
+     * pairs concurrently, each thread accumulating into its own buffer, so overrides must not modify
+     * either bacterium.
+     */
+    public void computeNeighbourForce(BSimCapsuleBacterium neighbour_bac, double[] force, int thisOffset, int neighbourOffset) {
+
+        /** Calculate vectors and distances used throughout this method.
+         * These are kept in local variables rather than Vector3d objects, so that the kernel does not allocate. */
 
         // u = x2 - x1 = vector pointing from one endpoint to the other
-        Vector3d u = new Vector3d();
-        u.sub(this.x2, this.x1);
+        double ux = this.x2.x - this.x1.x, uy = this.x2.y - this.x1.y, uz = this.x2.z - this.x1.z;
         // v = x2 - x1 (neighbour cell)
-        Vector3d v = new Vector3d();
-        v.sub(neighbour_bac.x2, neighbour_bac.x1);
+        double vx = neighbour_bac.x2.x - neighbour_bac.x1.x, vy = neighbour_bac.x2.y - neighbour_bac.x1.y, vz = neighbour_bac.x2.z - neighbour_bac.x1.z;
         // difference between the two x1 points
-        Vector3d w = new Vector3d();
-        w.sub(this.x1, neighbour_bac.x1);
+        double wx = this.x1.x - neighbour_bac.x1.x, wy = this.x1.y - neighbour_bac.x1.y, wz = this.x1.z - neighbour_bac.x1.z;
 
         //distances between enpoints
-        Vector3d dis11 = new Vector3d();
-        dis11.sub(this.x1, neighbour_bac.x1);
-        Vector3d dis22 = new Vector3d();
-        dis22.sub(this.x2, neighbour_bac.x2);
-        Vector3d dis12 = new Vector3d();
-        dis12.sub(this.x1, neighbour_bac.x2);
-        Vector3d dis21 = new Vector3d();
-        dis21.sub(this.x2, neighbour_bac.x1); //displacement between endpoints of cell and neighbour
-
-        double d11 = dis11.length();
-        double d22 = dis22.length();
-        double d21 = dis21.length();
-        double d12 = dis12.length(); //distance between endpoints of cell and neighbour
-
-        Vector3d axis11 = new Vector3d(dis11);
-        axis11.normalize();
-        Vector3d axis22 = new Vector3d(dis22);
-        axis22.normalize();
-        Vector3d axis12 = new Vector3d(dis12);
-        axis12.normalize();
-        Vector3d axis21 = new Vector3d(dis21);
-        axis21.normalize(); // gets directions for forces to point -> normalized displacement L/|L| as in paper
+        double dis11x = wx, dis11y = wy, dis11z = wz;
+        double dis22x = this.x2.x - neighbour_bac.x2.x, dis22y = this.x2.y - neighbour_bac.x2.y, dis22z = this.x2.z - neighbour_bac.x2.z;
+        double dis12x = this.x1.x - neighbour_bac.x2.x, dis12y = this.x1.y - neighbour_bac.x2.y, dis12z = this.x1.z - neighbour_bac.x2.z;
+        double dis21x = this.x2.x - neighbour_bac.x1.x, dis21y = this.x2.y - neighbour_bac.x1.y, dis21z = this.x2.z - neighbour_bac.x1.z; //displacement between endpoints of cell and neighbour
+
+        double d11 = Math.sqrt(dis11x * dis11x + dis11y * dis11y + dis11z * dis11z);
+        double d22 = Math.sqrt(dis22x * dis22x + dis22y * dis22y + dis22z * dis22z);
+        double d21 = Math.sqrt(dis21x * dis21x + dis21y * dis21y + dis21z * dis21z);
+        double d12 = Math.sqrt(dis12x * dis12x + dis12y * dis12y + dis12z * dis12z); //distance between endpoints of cell and neighbour
+
+        // gets directions for forces to point -> normalized displacement L/|L| as in paper
+        double norm11 = 1.0 / d11, norm22 = 1.0 / d22, norm12 = 1.0 / d12, norm21 = 1.0 / d21;
+        double axis11x = dis11x * norm11, axis11y = dis11y * norm11, axis11z = dis11z * norm11;
+        double axis22x = dis22x * norm22, axis22y = dis22y * norm22, axis22z = dis22z * norm22;
+        double axis12x = dis12x * norm12, axis12y = dis12y * norm12, axis12z = dis12z * norm12;
+        double axis21x = dis21x * norm21, axis21y = dis21y * norm21, axis21z = dis21z * norm21;
 
         /** sticking and collision force */
 
-        Vector3d dist = new Vector3d();
-        dist.sub(this.position, neighbour_bac.position); // position = midpoint of cell
-        double maxDist = 0.5 * (this.L + neighbour_bac.L) + (this.radius + neighbour_bac.radius) +
-                2 * contact_range_extension;
+        // position = midpoint of cell
+        double distx = this.position.x - neighbour_bac.position.x;
+        double disty = this.position.y - neighbour_bac.position.y;
+        double distz = this.position.z - neighbour_bac.position.z;
+        double maxDist = neighbourInteractionRange(neighbour_bac);
         // sticking forces: end to end and across
         //sticking links (tertiary structure -> changes cell density)
         // these bonds happen between cells when they are side-by-side
-        if (dist.length() < maxDist) { //dist is distance from midpoint to midpoint
-            double[] scalars = ClosestApproach(neighbour_bac);
+        if (Math.sqrt(distx * distx + disty * disty + distz * distz) < maxDist) { //dist is distance from midpoint to midpoint
+            double[] scalars = contactScratch.get().closestApproach;
+            closestApproach(ux, uy, uz, vx, vy, vz, wx, wy, wz, scalars);
             double sc = scalars[0];
             double tc = scalars[1];
 
-            Vector3d dP = new Vector3d(w);
-            dP.scaleAdd(sc, u, dP);
-            dP.scaleAdd(-tc, v, dP);
-            double neighbourDist = dP.length();
+            // dP = w + sc * u - tc * v
+            double dPx = wx + sc * ux - tc * vx;
+            double dPy = wy + sc * uy - tc * vy;
+            double dPz = wz + sc * uz - tc * vz;
+            double neighbourDist = Math.sqrt(dPx * dPx + dPy * dPy + dPz * dPz);
             double neighbourDistTol = 2*(radius + contact_range_extension);
             if (neighbourDist < 2*neighbourDistTol) {
                 /** sticking force */
@@ -634,7 +693,7 @@ public class BSimCapsuleBacterium {
                 double damping_factor = Math.min(1.0,check_contact);
 
 
-                double dot_product = u.dot(v);
+                double dot_product = ux * vx + uy * vy + uz * vz;
 
                 if (dot_product > 0 /*d11<d12 && d11 < d21*/) {
                     // if cells are oriented same direction
@@ -647,29 +706,29 @@ public class BSimCapsuleBacterium {
                     if (Math.abs(d11_diff) < neighbourDistTol){
                       strength11 = -k_sticking * d11_diff * Math.pow(neighbourDistTol-Math.abs(d11_diff),2) * damping_factor;
                     }
-                    this.x1force.scaleAdd(strength11, axis11, this.x1force);
-                    neighbour_bac.x1force.scaleAdd(-strength11, axis11, neighbour_bac.x1force);
+                    addForce(force, thisOffset, strength11, axis11x, axis11y, axis11z);
+                    addForce(force, neighbourOffset, -strength11, axis11x, axis11y, axis11z);
 
                     double strength22 = 0;
                     if (Math.abs(d22_diff) < neighbourDistTol){
                       strength22 = -k_sticking * d22_diff * Math.pow(neighbourDistTol-Math.abs(d22_diff),2) * damping_factor;
                     }
-                    this.x2force.scaleAdd(strength22, axis22, this.x2force);
-                    neighbour_bac.x2force.scaleAdd(-strength22, axis22, neighbour_bac.x2force);
+                    addForce(force, thisOffset + 3, strength22, axis22x, axis22y, axis22z);
+                    addForce(force, neighbourOffset + 3, -strength22, axis22x, axis22y, axis22z);
 
                     double strength12 = 0;
                     if (Math.abs(d12_diff) < neighbourDistTol){
                       strength12 = -k_sticking * d12_diff * Math.pow(neighbourDistTol-Math.abs(d12_diff),2) * damping_factor;
                     }
-                    this.x1force.scaleAdd(strength12, axis12, this.x1force);
-                    neighbour_bac.x2force.scaleAdd(-strength12, axis12, neighbour_bac.x2force);
+                    addForce(force, thisOffset, strength12, axis12x, axis12y, axis12z);
+                    addForce(force, neighbourOffset + 3, -strength12, axis12x, axis12y, axis12z);
 
                     double strength21 = 0;
                     if (Math.abs(d21_diff) < neighbourDistTol){
                       strength21 = -k_sticking * d21_diff * Math.pow(neighbourDistTol-Math.abs(d21_diff),2) * damping_factor;
                     }
-                    this.x2force.scaleAdd(strength21, axis21, this.x2force);
-                    neighbour_bac.x1force.scaleAdd(-strength21, axis21, neighbour_bac.x1force);
+                    addForce(force, thisOffset + 3, strength21, axis21x, axis21y, axis21z);
+                    addForce(force, neighbourOffset, -strength21, axis21x, axis21y, axis21z);
 
                   } else {
                     double d11_diff = (d11 - stickingRestLong);
@@ -681,41 +740,42 @@ public class BSimCapsuleBacterium {
                     if (Math.abs(d11_diff) < neighbourDistTol){
                       strength11 = -k_sticking * d11_diff * Math.pow(neighbourDistTol-Math.abs(d11_diff),2) * damping_factor;
                     }
-                    this.x1force.scaleAdd(strength11, axis11, this.x1force);
-                    neighbour_bac.x1force.scaleAdd(-strength11, axis11, neighbour_bac.x1force);
+                    addForce(force, thisOffset, strength11, axis11x, axis11y, axis11z);
+                    addForce(force, neighbourOffset, -strength11, axis11x, axis11y, axis11z);
 
                     double strength22 = 0;
                     if (Math.abs(d22_diff) < neighbourDistTol){
                       strength22 = -k_sticking * d22_diff * Math.pow(neighbourDistTol-Math.abs(d22_diff),2) * damping_factor;
                     }
-                    this.x2force.scaleAdd(strength22, axis22, this.x2force);
-                    neighbour_bac.x2force.scaleAdd(-strength22, axis22, neighbour_bac.x2force);
+                    addForce(force, thisOffset + 3, strength22, axis22x, axis22y, axis22z);
+                    addForce(force, neighbourOffset + 3, -strength22, axis22x, axis22y, axis22z);
 
                     double strength12 = 0;
                     if (Math.abs(d12_diff) < neighbourDistTol){
                       strength12 = -k_sticking * d12_diff * Math.pow(neighbourDistTol-Math.abs(d12_diff),2) * damping_factor;
                     }
-                    this.x1force.scaleAdd(strength12, axis12, this.x1force);
-                    neighbour_bac.x2force.scaleAdd(-strength12, axis12, neighbour_bac.x2force);
+                    addForce(force, thisOffset, strength12, axis12x, axis12y, axis12z);
+                    addForce(force, neighbourOffset + 3, -strength12, axis12x, axis12y, axis12z);
 
                     double strength21 = 0;
                     if (Math.abs(d21_diff) < neighbourDistTol){
                       strength21 = -k_sticking * d21_diff * Math.pow(neighbourDistTol-Math.abs(d21_diff),2) * damping_factor;
                     }
-                    this.x2force.scaleAdd(strength21, axis21, this.x2force);
-                    neighbour_bac.x1force.scaleAdd(-strength21, axis21, neighbour_bac.x1force);
+                    addForce(force, thisOffset + 3, strength21, axis21x, axis21y, axis21z);
+                    addForce(force, neighbourOffset, -strength21, axis21x, axis21y, axis21z);
 
                 }
 
 
                 /** collision force: if contact occurs, apply the collision force */
-                double rDist = (this.L + neighbour_bac.L) * 0.5 + (this.radius + neighbour_bac.radius);
-                if (dist.dot(dist) < rDist * rDist) {}
                 if (neighbourDist < 2 * radius) {
                     // Try this; if necessary we can simplify to a linear force
                     double repulsionStrength = 0.4 * k_cell * Math.pow(2 * radius - neighbourDist, 2.5);
                     // why is this to the 2.5 power?
-                    dP.normalize();
+                    double normP = 1.0 / neighbourDist;
+                    dPx *= normP;
+                    dPy *= normP;
+                    dPz *= normP;
 
                     /*
                     COMMENT FROM ORIGINAL AUTHORS WHILE THEY WERE TESTING
@@ -730,12 +790,12 @@ public class BSimCapsuleBacterium {
                     Test + compare the alternatives if this doesn't work.
                     */
 
-                    this.x1force.scaleAdd((1.0 - sc) * repulsionStrength, dP, this.x1force);
-                    this.x2force.scaleAdd(sc * repulsionStrength, dP, this.x2force);
+                    addForce(force, thisOffset, (1.0 - sc) * repulsionStrength, dPx, dPy, dPz);
+                    addForce(force, thisOffset + 3, sc * repulsionStrength, dPx, dPy, dPz);
 
                     // final calculation of overlap forces
-                    neighbour_bac.x1force.scaleAdd(-(1.0 - tc) * repulsionStrength, dP, neighbour_bac.x1force);
-                    neighbour_bac.x2force.scaleAdd(-tc * repulsionStrength, dP, neighbour_bac.x2force);
+                    addForce(force, neighbourOffset, -(1.0 - tc) * repulsionStrength, dPx, dPy, dPz);
+                    addForce(force, neighbourOffset + 3, -tc * repulsionStrength, dPx, dPy, dPz);
                 }
             }
         }
@@ -745,7 +805,8 @@ public class BSimCapsuleBacterium {
 
         // angle between cell and its neighbour
         // used as a condition on filial force existence
-        double angleuv = u.angle(v);
+        double cosuv = (ux * vx + uy * vy + uz * vz) / (Math.sqrt(ux * ux + uy * uy + uz * uz) * Math.sqrt(vx * vx + vy * vy + vz * vz));
+        double angleuv = Math.acos(Math.max(-1.0, Math.min(1.0, cosuv)));
         //cells must be oriented to within pi/8 rads (22.5 degrees) of each other to stick end to end
         //filial links (secondary structure -> causes chains to form)
         //might want to include condition on being sisters
@@ -758,50 +819,48 @@ public class BSimCapsuleBacterium {
         double thisLength = this.L; //length of current cell
         double neighborLength = neighbour_bac.L; //length of neighbour
 
-        Vector3d filialAxis, longFilialAxis;
-
         if (d11 < d22 && d11 < d12 && d11 < d21 && d11 < 2 * radius + range_filial && (Math.PI - angleuv) <= minimumAngle) {
             //if the closest two points are x11 and x12
-            filialAxis = axis11; // set filialAxis to direction from x11 to x12
+            // filialAxis = axis11: direction from x11 to x12
             double stickyForceStrength = -k_filial * (d11 - 2 * radius - 0.05 * radius); //spring attaching endpoints
             //this.x1force.scaleAdd(stickyForceStrength,filialAxis,this.x1force); // adds the force to the endpoint
             //neighbour_bac.x1force.scaleAdd(-stickyForceStrength,filialAxis,neighbour_bac.x1force);
 
             //also a spring attaching furthest endpoints (but repulsive!) -> maybe this should be weaker?
-            longFilialAxis = axis22;
+            // longFilialAxis = axis22
             double longFilialForceStrength = k_longfilial * (d22 - 2 * radius - thisLength - neighborLength - 0.05 * radius);
             //this.x2force.scaleAdd(longFilialForceStrength,longFilialAxis,this.x2force);
             //neighbour_bac.x2force.scaleAdd(-longFilialForceStrength,longFilialAxis,neighbour_bac.x2force);
         } else if (d22 < d11 && d22 < d12 && d22 < d21 && d22 < 2 * radius + range_filial && (Math.PI - angleuv) <= minimumAngle) {
             //if the closest two points are x21 and x22
-            filialAxis = axis22; // set filialAxis to direction from x21 to x22
+            // filialAxis = axis22: direction from x21 to x22
             double stickyForceStrength = -k_filial * (d22 - 2 * radius - 0.05 * radius);
             //this.x2force.scaleAdd(stickyForceStrength,filialAxis,this.x2force);
             //neighbour_bac.x2force.scaleAdd(-stickyForceStrength,filialAxis,neighbour_bac.x2force);
 
-            longFilialAxis = axis11;
+            // longFilialAxis = axis11
             double longFilialForceStrength = k_longfilial * (d11 - 2 * radius - thisLength - neighborLength - 0.05 * radius);
             //this.x2force.scaleAdd(longFilialForceStrength,longFilialAxis,this.x2force);
             //neighbour_bac.x2force.scaleAdd(-longFilialForceStrength,longFilialAxis,neighbour_bac.x2force);
         } else if (d12 < d11 && d12 < d21 && d12 < d22 && d12 < 2 * radius + range_filial && angleuv <= minimumAngle) {
             //if the closest two points are x11 and x22
-            filialAxis = axis12; // set filialAxis to direction from x11 to x22
+            // filialAxis = axis12: direction from x11 to x22
             double stickyForceStrength = -k_filial * (d12 - 2 * radius - 0.05 * radius);
             //this.x1force.scaleAdd(stickyForceStrength,filialAxis,this.x1force);
             //neighbour_bac.x2force.scaleAdd(-stickyForceStrength,filialAxis,neighbour_bac.x2force);
 
-            longFilialAxis = axis21;
+            // longFilialAxis = axis21
             double longFilialForceStrength = k_longfilial * (d21 - 2 * radius - thisLength - neighborLength - 0.05 * radius);
             //this.x2force.scaleAdd(longFilialForceStrength,longFilialAxis,this.x2force);
             //neighbour_bac.x2force.scaleAdd(-longFilialForceStrength,longFilialAxis,neighbour_bac.x2force);
         } else if (d21 < d11 && d21 < d12 && d21 < d22 && d21 < 2 * radius + range_filial && angleuv <= minimumAngle) {
             //if the closest two points are x21 and x12
-            filialAxis = axis21; // set filialAxis to direction from x21 to x12
+            // filialAxis = axis21: direction from x21 to x12
             double stickyForceStrength = -k_filial * (d21 - 2 * radius - 0.05 * radius);
             //this.x2force.scaleAdd(stickyForceStrength,filialAxis,this.x2force);
             //neighbour_bac.x1force.scaleAdd(-stickyForceStrength,filialAxis,neighbour_bac.x1force);
 
-            longFilialAxis = axis12;
+            // longFilialAxis = axis12
             double longFilialForceStrength = k_longfilial * (d12 - 2 * radius - thisLength - neighborLength - 0.05 * radius);
             //this.x2force.scaleAdd(longFilialForceStrength,longFilialAxis,this.x2force);
             //neighbour_bac.x2force.scaleAdd(-longFilialForceStrength,longFilialAxis,neighbour_bac.x2force);
@@ -0,0 +1,102 @@
+package bsim.capsule;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Structure-of-arrays store for a population of capsule bacteria, as used by the movers.
+ *
+ * Bacterium i has its endpoints at endpoints[6*i] ... endpoints[6*i + 5] (x1 then x2), and its midpoint at
+ * midpoints[3*i] ... midpoints[3*i + 2].
+ * The first 6*size() + 1 entries of the endpoint column can be handed directly to an ODE solver as the state
+ * vector, with time as the final state variable; the columns only grow with the population.
+ *
+ * The bacteria themselves remain the owners of their state (their Vector3d fields are public and used
+ * throughout the examples and subclasses); load() gathers it into the columns, and storeEndpoints() writes
+ * the endpoints back once the mover has finished with them.
+ */
+public class CapsulePopulation {
+
+    BSimCapsuleBacterium[] bacteria = new BSimCapsuleBacterium[0];
+    int size;
+
+    public double[] endpoints = new double[1];
+    public double[] midpoints = new double[0];
+
+    /** Number of bacteria in the population. */
+    public int size(){
+        return size;
+    }
+
+    /** The i-th bacterium, in the order of the list that was loaded. */
+    public BSimCapsuleBacterium get(int i){
+        return bacteria[i];
+    }
+
+    /**
+     * Gather the current state of a list of bacteria into the columns.
+     * @return the number of leading bacteria that are the same, in the same order, as at the previous load.
+     * Bacteria appended to the list (e.g. by division) leave the earlier ones unchanged.
+     */
+    public int load(List<? extends BSimCapsuleBacterium> allBacteria){
+        int n = allBacteria.size();
+        if(bacteria.length < n){
+            int capacity = Math.max(n, 2*bacteria.length);
+            bacteria = Arrays.copyOf(bacteria, capacity);
+            midpoints = new double[3*capacity];
+            endpoints = new double[6*capacity + 1];
+        }
+
+        int unchanged = -1;
+        int i = 0;
+        for(BSimCapsuleBacterium b : allBacteria){
+            if(unchanged < 0 && (i == size || bacteria[i] != b)) unchanged = i;
+            bacteria[i] = b;
+
+            int e = 6*i;
+            endpoints[e] = b.x1.x;
+            endpoints[e + 1] = b.x1.y;
+            endpoints[e + 2] = b.x1.z;
+            endpoints[e + 3] = b.x2.x;
+            endpoints[e + 4] = b.x2.y;
+            endpoints[e + 5] = b.x2.z;
+
+            int m = 3*i;
+            midpoints[m] = b.position.x;
+            midpoints[m + 1] = b.position.y;
+            midpoints[m + 2] = b.position.z;
+            i++;
+        }
+        for(i = n; i < size; i++) bacteria[i] = null;
+        size = n;
+
+        // Time, for use as an ODE state
+        endpoints[6*n] = 0;
+
+        return (unchanged < 0) ? n : unchanged;
+    }
+
+    /** Length of the ODE state in the endpoint column: the endpoints of all bacteria, then time. */
+    public int stateLength(){
+        return 6*size + 1;
+    }
+
+    /**
+     * Set the endpoints of bacterium i from the state y (laid out as the endpoint column).
+     */
+    public void setEndpoints(int i, double[] y){
+        BSimCapsuleBacterium b = bacteria[i];
+        int e = 6*i;
+        b.x1.set(y[e], y[e + 1], y[e + 2]);
+        b.x2.set(y[e + 3], y[e + 4], y[e + 5]);
+    }
+
+    /**
+     * Write the endpoint column back into the bacteria.
+     */
+    public void storeEndpoints(){
+        for(int i = 0; i < size; i++){
+            setEndpoints(i, endpoints);
+        }
+    }
+}
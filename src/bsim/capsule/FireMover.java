@@ -0,0 +1,155 @@
+package bsim.capsule;
+
+import bsim.BSim;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Contact solver that minimises the contact potential (wall, internal spring and cell-cell overlap) directly with
+ * FIRE (the Fast Inertial Relaxation Engine; Bitzek et al., PRL 97, 170201, 2006), instead of integrating the
+ * overdamped motion dpos/dt = force over a fixed relaxation time as RelaxationMoverGrid does.
+ *
+ * FIRE is damped dynamics with an adaptive timestep, which steers the velocity towards the force and restarts
+ * whenever it points uphill. It only needs the forces, so it uses the same force evaluation (grid, neighbour
+ * list and optional threads) as RelaxationMoverGrid, and the same settings apply.
+ *
+ * The minimisation stops when no endpoint has a net force above the force tolerance, or after maxIterations
+ * force evaluations.
+ *
+ * The neighbour forces are not all conservative: the sticking force is damped by the overlap of the bacteria's
+ * oriented bounding boxes, so it is not the gradient of any potential. With sticking, FIRE therefore looks for
+ * a configuration in which the forces balance rather than a minimum of an energy, and its uphill test (force
+ * against velocity) is a heuristic rather than a test of rising energy.
+ */
+public class FireMover extends RelaxationMoverGrid {
+
+    // FIRE parameters, as recommended by Bitzek et al.
+    static final int N_MIN = 5;
+    static final double F_INC = 1.1;
+    static final double F_DEC = 0.5;
+    static final double ALPHA_START = 0.1;
+    static final double F_ALPHA = 0.99;
+
+    /** Initial and maximum timestep of the damped dynamics (relaxation time units). */
+    double dtStart = 0.1;
+    double dtMax = 1.0;
+    /** Largest distance an endpoint may move in one iteration (microns), which keeps the dynamics stable. */
+    double maxDisplacement = 0.5;
+    /** Largest net force on any endpoint at which the bacteria are considered relaxed. */
+    double forceTolerance = 0.1;
+    int maxIterations = 1000;
+
+    double[] velocity = new double[0];
+    double[] force = new double[0];
+
+    public FireMover(List<BSimCapsuleBacterium> _allBacteria, BSim _sim){
+        super(_allBacteria, _sim);
+    }
+
+    public void setForceTolerance(double forceTolerance){
+        this.forceTolerance = forceTolerance;
+    }
+
+    public double getForceTolerance(){
+        return forceTolerance;
+    }
+
+    public void setMaxIterations(int maxIterations){
+        this.maxIterations = maxIterations;
+    }
+
+    public int getMaxIterations(){
+        return maxIterations;
+    }
+
+    /**
+     * Sets the initial and maximum timestep of the damped dynamics, and the largest distance an endpoint may
+     * move in one iteration.
+     */
+    public void setTimesteps(double dtStart, double dtMax, double maxDisplacement){
+        this.dtStart = dtStart;
+        this.dtMax = dtMax;
+        this.maxDisplacement = maxDisplacement;
+    }
+
+    @Override
+    public void move() {
+        // Other velocities (flow etc.) are applied first, as in RelaxationMoverGrid.
+        for(BSimCapsuleBacterium b : allBacteria){
+            b.setAllForcesZero();
+            b.computeFlowForce();
+            b.updatePosition();
+        }
+
+        rhsEvaluations = 0;
+        relaxationTime = 0;
+
+        rebin();
+        layoutChunks();
+        if(useNeighbourList) buildPairList();
+
+        int n = getSystemDimension();
+        int dimension = 6*n;
+        double[] x = population.endpoints;
+        if(force.length < dimension + 1){
+            force = new double[x.length];
+            velocity = new double[x.length];
+        }
+        Arrays.fill(velocity, 0, dimension, 0.0);
+
+        double dt = dtStart;
+        double alpha = ALPHA_START;
+        int sinceUphill = 0;
+
+        moverEquations.getRate(x, force);
+        for(int iteration = 0; iteration < maxIterations; iteration++){
+            if(maxEndpointSpeed(force, n) < forceTolerance) break;
+
+            // Mix the velocity towards the force while going downhill; stop and slow down when going uphill.
+            // At rest (the first iteration) the power is 0, which counts as downhill, as in standard FIRE
+            double power = 0, vSq = 0, fSq = 0;
+            for(int k = 0; k < dimension; k++){
+                power += force[k]*velocity[k];
+                vSq += velocity[k]*velocity[k];
+                fSq += force[k]*force[k];
+            }
+            if(power >= 0){
+                double mix = (fSq > 0) ? alpha*Math.sqrt(vSq/fSq) : 0;
+                for(int k = 0; k < dimension; k++){
+                    velocity[k] = (1 - alpha)*velocity[k] + mix*force[k];
+                }
+                if(++sinceUphill > N_MIN){
+                    dt = Math.min(dt*F_INC, dtMax);
+                    alpha *= F_ALPHA;
+                }
+            } else {
+                Arrays.fill(velocity, 0, dimension, 0.0);
+                dt *= F_DEC;
+                alpha = ALPHA_START;
+                sinceUphill = 0;
+            }
+
+            // Semi-implicit Euler step (unit mass), limited to maxDisplacement per endpoint
+            double maxStepSq = 0;
+            for(int k = 0; k < dimension; k += 3){
+                double vx = velocity[k] + dt*force[k];
+                double vy = velocity[k + 1] + dt*force[k + 1];
+                double vz = velocity[k + 2] + dt*force[k + 2];
+                velocity[k] = vx;
+                velocity[k + 1] = vy;
+                velocity[k + 2] = vz;
+                maxStepSq = Math.max(maxStepSq, (vx*vx + vy*vy + vz*vz)*dt*dt);
+            }
+            double scale = (maxStepSq > maxDisplacement*maxDisplacement) ? maxDisplacement/Math.sqrt(maxStepSq) : 1.0;
+            for(int k = 0; k < dimension; k++){
+                x[k] += scale*dt*velocity[k];
+            }
+            relaxationTime += scale*dt;
+
+            moverEquations.getRate(x, force);
+        }
+
+        population.storeEndpoints();
+    }
+}
@@ -0,0 +1,215 @@
+package bsim.capsule;
+
+import bsim.BSim;
+
+import javax.vecmath.Vector3d;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the parallel evaluation of the relaxation RHS in RelaxationMoverGrid (see setForceThreads())
+ * gives bit-identical results for any number of threads, and agrees with the sequential evaluation to round-off,
+ * and that the grid (including its overflow bucket, for bacteria outside it) finds the same forces as a
+ * brute force evaluation over all pairs.
+ *
+ * Exits with a non-zero status if a check fails.
+ */
+public class MoverDeterminismTest {
+
+    static final int[] THREADS = {1, 2, 7};
+    static final double MIN_AXIS_DISTANCE = 0.6;
+
+    public static void main(String[] args) {
+        int population = 400;
+        int failures = 0;
+
+        for (boolean neighbourList : new boolean[] {false, true}) {
+            // The RHS for one and the same configuration
+            double[] sequential = rate(population, 0, neighbourList);
+            double[] reference = null;
+            for (int threads : THREADS) {
+                double[] parallel = rate(population, threads, neighbourList);
+                if (reference == null) {
+                    reference = parallel;
+                } else if (!bitIdentical(reference, parallel)) {
+                    System.err.println("RHS with " + threads + " threads differs from " + THREADS[0] + " thread(s)" +
+                            " (neighbour list " + neighbourList + ")");
+                    failures++;
+                }
+            }
+            double bruteForceDifference = maxDifference(sequential, bruteForceRate(population));
+            System.out.println("Neighbour list " + neighbourList + ": max |grid - all pairs| RHS = " + bruteForceDifference);
+            if (!(bruteForceDifference <= 1e-9 * Math.max(1.0, maxAbs(sequential)))) {
+                System.err.println("The grid RHS differs from the brute force RHS by more than round-off");
+                failures++;
+            }
+
+            double difference = maxDifference(sequential, reference);
+            System.out.println("Neighbour list " + neighbourList + ": max |parallel - sequential| RHS = " + difference);
+            if (!(difference <= 1e-9 * Math.max(1.0, maxAbs(sequential)))) {
+                System.err.println("Parallel RHS differs from the sequential RHS by more than round-off");
+                failures++;
+            }
+
+            // A few complete timesteps
+            double[] referencePositions = null;
+            for (int threads : THREADS) {
+                double[] positions = relax(population, threads, neighbourList, 2);
+                if (Double.isNaN(maxAbs(positions))) {
+                    System.err.println("Relaxation with " + threads + " threads gave NaN positions");
+                    failures++;
+                }
+                if (referencePositions == null) {
+                    referencePositions = positions;
+                } else if (!bitIdentical(referencePositions, positions)) {
+                    System.err.println("Positions after relaxing with " + threads + " threads differ from " +
+                            THREADS[0] + " thread(s) (neighbour list " + neighbourList + ")");
+                    failures++;
+                }
+            }
+        }
+
+        if (failures > 0) {
+            System.err.println(failures + " check(s) FAILED");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    /**
+     * A crowded colony, with many overlapping and touching bacteria; the same for a given size.
+     * A few bacteria, and their neighbours, are beyond the edge of the domain (and of the mover grid).
+     * Axes are kept at least MIN_AXIS_DISTANCE apart: the contact force is undefined for crossing axes.
+     */
+    static List<BSimCapsuleBacterium> colony(BSim sim, int n) {
+        Random rng = new Random(1234);
+        List<BSimCapsuleBacterium> bacteria = new ArrayList<>();
+        double side = Math.sqrt(n) * 3.0;
+        sim.setBound(side + 10, side + 10, 1);
+        sim.setSolid(true, false, true);
+        double[] sctc = new double[2];
+
+        generator:
+        while (bacteria.size() < n) {
+            double bL = 2 + 2 * rng.nextDouble();
+            double angle = rng.nextDouble() * 2 * Math.PI;
+            double offset = (bacteria.size() % 50 == 0) ? 2 * side : 0;
+            Vector3d x1 = new Vector3d(5 + offset + rng.nextDouble() * side / 8, 5 + rng.nextDouble() * side, 0.5);
+            if (offset == 0) x1.x = 5 + rng.nextDouble() * side;
+            Vector3d x2 = new Vector3d(x1.x + bL * Math.sin(angle), x1.y + bL * Math.cos(angle), 0.5);
+
+            for (BSimCapsuleBacterium other : bacteria) {
+                double ux = x2.x - x1.x, uy = x2.y - x1.y, vx = other.x2.x - other.x1.x, vy = other.x2.y - other.x1.y;
+                double wx = x1.x - other.x1.x, wy = x1.y - other.x1.y;
+                BSimCapsuleBacterium.closestApproach(ux, uy, 0, vx, vy, 0, wx, wy, 0, sctc);
+                double dx = wx + sctc[0] * ux - sctc[1] * vx;
+                double dy = wy + sctc[0] * uy - sctc[1] * vy;
+                if (dx * dx + dy * dy < MIN_AXIS_DISTANCE * MIN_AXIS_DISTANCE) continue generator;
+            }
+
+            BSimCapsuleBacterium b = new BSimCapsuleBacterium(sim, x1, x2);
+            b.L = bL;
+            bacteria.add(b);
+        }
+        return bacteria;
+    }
+
+    static RelaxationMoverGrid mover(List<BSimCapsuleBacterium> bacteria, BSim sim, int threads, boolean neighbourList) {
+        RelaxationMoverGrid mover = new RelaxationMoverGrid(bacteria, sim);
+        mover.setForceThreads(threads);
+        mover.setUseNeighbourList(neighbourList);
+        return mover;
+    }
+
+    static double[] rate(int n, int threads, boolean neighbourList) {
+        BSim sim = new BSim();
+        List<BSimCapsuleBacterium> bacteria = colony(sim, n);
+        RelaxationMoverGrid mover = mover(bacteria, sim, threads, neighbourList);
+
+        mover.rebin();
+        mover.layoutChunks();
+        if (neighbourList) mover.buildPairList();
+        double[] y = mover.population.endpoints.clone();
+        double[] dy = new double[y.length];
+        mover.moverEquations.getRate(y, dy);
+
+        mover.shutdown();
+        return dy;
+    }
+
+    /** The RHS evaluated directly: self and wall forces, and the neighbour force for every ordered pair. */
+    static double[] bruteForceRate(int n) {
+        BSim sim = new BSim();
+        List<BSimCapsuleBacterium> bacteria = colony(sim, n);
+        double[] dy = new double[6 * n + 1];
+        for (int i = 0; i < n; i++) {
+            BSimCapsuleBacterium b = bacteria.get(i);
+            b.x1force.set(0.0, 0.0, 0.0);
+            b.x2force.set(0.0, 0.0, 0.0);
+            b.computeSelfForce();
+            b.computeWallForce();
+            dy[6 * i] = b.x1force.x;
+            dy[6 * i + 1] = b.x1force.y;
+            dy[6 * i + 2] = b.x1force.z;
+            dy[6 * i + 3] = b.x2force.x;
+            dy[6 * i + 4] = b.x2force.y;
+            dy[6 * i + 5] = b.x2force.z;
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (j != i) bacteria.get(i).computeNeighbourForce(bacteria.get(j), dy, 6 * i, 6 * j);
+            }
+        }
+        dy[6 * n] = 1.0;
+        return dy;
+    }
+
+    static double[] relax(int n, int threads, boolean neighbourList, int steps) {
+        BSim sim = new BSim();
+        sim.setDt(0.1);
+        List<BSimCapsuleBacterium> bacteria = colony(sim, n);
+        RelaxationMoverGrid mover = mover(bacteria, sim, threads, neighbourList);
+
+        for (int step = 0; step < steps; step++) {
+            mover.move();
+        }
+        mover.shutdown();
+
+        double[] positions = new double[6 * n];
+        for (int i = 0; i < n; i++) {
+            BSimCapsuleBacterium b = bacteria.get(i);
+            positions[6 * i] = b.x1.x;
+            positions[6 * i + 1] = b.x1.y;
+            positions[6 * i + 2] = b.x1.z;
+            positions[6 * i + 3] = b.x2.x;
+            positions[6 * i + 4] = b.x2.y;
+            positions[6 * i + 5] = b.x2.z;
+        }
+        return positions;
+    }
+
+    static boolean bitIdentical(double[] a, double[] b) {
+        if (a.length != b.length) return false;
+        for (int i = 0; i < a.length; i++) {
+            if (Double.doubleToLongBits(a[i]) != Double.doubleToLongBits(b[i])) return false;
+        }
+        return true;
+    }
+
+    static double maxAbs(double[] a) {
+        double max = 0;
+        for (double value : a) {
+            max = Math.max(max, Math.abs(value));
+        }
+        return max;
+    }
+
+    static double maxDifference(double[] a, double[] b) {
+        double max = 0;
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+}
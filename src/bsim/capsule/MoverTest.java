@@ -175,7 +175,9 @@ public class MoverTest {
 
                 endTimeAction = System.nanoTime();
                 if((sim.getTimestep() % LOG_INTERVAL) == 0) {
-                    System.out.println("Wall and neighbour interactions took " + (endTimeAction - startTimeAction)/1e6 + " ms.");
+                    System.out.println("Wall and neighbour interactions took " + (endTimeAction - startTimeAction)/1e6 + " ms" +
+                            " (" + mover.getRhsEvaluations() + " force evaluations over relaxation time " +
+                            mover.getRelaxationTime() + ").");
                 }
 
                 // ********************************************** Boundaries/removal
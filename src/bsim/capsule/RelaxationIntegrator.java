@@ -0,0 +1,187 @@
+package bsim.capsule;
+
+import java.util.Arrays;
+
+/**
+ * Embedded Runge-Kutta integrator for the overdamped relaxation system dy/dt = f(y) of the movers.
+ *
+ * RK23 is the Bogacki-Shampine 3(2) pair (as OSP's BogackiShampine23), RK45 the Dormand-Prince 5(4) pair.
+ * Both are FSAL (first same as last): the rate at the end of an accepted step is the first stage of the next,
+ * and is available from getRate(), e.g. as a force residual for convergence tests.
+ *
+ * The stage buffers are kept between calls and only grow with the system, so a mover can keep one integrator
+ * for the whole simulation.
+ */
+public class RelaxationIntegrator {
+
+    /** The right hand side of the system. */
+    public interface RateFunction {
+        void getRate(double[] y, double[] dy);
+    }
+
+    public enum Method {
+        RK23(new double[][] {
+                {},
+                {1.0/2.0},
+                {0.0, 3.0/4.0},
+                {2.0/9.0, 1.0/3.0, 4.0/9.0}},
+                new double[] {-5.0/72.0, 1.0/12.0, 1.0/9.0, -1.0/8.0},
+                2),
+        RK45(new double[][] {
+                {},
+                {1.0/5.0},
+                {3.0/40.0, 9.0/40.0},
+                {44.0/45.0, -56.0/15.0, 32.0/9.0},
+                {19372.0/6561.0, -25360.0/2187.0, 64448.0/6561.0, -212.0/729.0},
+                {9017.0/3168.0, -355.0/33.0, 46732.0/5247.0, 49.0/176.0, -5103.0/18656.0},
+                {35.0/384.0, 0.0, 500.0/1113.0, 125.0/192.0, -2187.0/6784.0, 11.0/84.0}},
+                new double[] {71.0/57600.0, 0.0, -71.0/16695.0, 71.0/1920.0, -17253.0/339200.0, 22.0/525.0, -1.0/40.0},
+                4);
+
+        /** Stage coefficients; the last row is also the weights of the solution (FSAL). */
+        final double[][] a;
+        /** Weights of the error estimate: the difference between the two embedded solutions. */
+        final double[] e;
+        /** Order of the lower order solution, which sets the step size control exponent. */
+        final int errorOrder;
+
+        Method(double[][] a, double[] e, int errorOrder) {
+            this.a = a;
+            this.e = e;
+            this.errorOrder = errorOrder;
+        }
+    }
+
+    Method method;
+    double absTol = 1.0e-6;
+    double relTol = 1.0e-3;
+    /** The step size that will be tried next. */
+    double stepSize;
+    /** Steps smaller than this (relative to the step size at initialize()) are considered a failure. */
+    static final double MIN_STEP_FRACTION = 1e-10;
+    double minStepSize;
+
+    /** Stage rates; k[0] holds the rate at the current state once valid is set. */
+    double[][] k = new double[0][0];
+    double[] yStage = new double[0];
+    boolean valid;
+
+    public RelaxationIntegrator(Method method) {
+        setMethod(method);
+    }
+
+    public void setMethod(Method method) {
+        this.method = method;
+        int stages = method.a.length;
+        if (k.length != stages) {
+            k = new double[stages][yStage.length];
+        }
+        valid = false;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public void setTolerances(double absTol, double relTol) {
+        this.absTol = absTol;
+        this.relTol = relTol;
+    }
+
+    /**
+     * Starts a new integration: the state will have changed since the last step, and the first step tried has
+     * the given size.
+     */
+    public void initialize(double stepSize) {
+        this.stepSize = stepSize;
+        this.minStepSize = MIN_STEP_FRACTION * stepSize;
+        this.valid = false;
+    }
+
+    /** The step size that will be tried next. */
+    public double getStepSize() {
+        return stepSize;
+    }
+
+    /**
+     * The rate at the state after the last step (only valid after a step; the array is reused by the next one).
+     */
+    public double[] getRate() {
+        return k[0];
+    }
+
+    /**
+     * Advance y (of which the first dimension entries are integrated) by one accepted step of at most maxStep.
+     * @return the size of the step taken; this is exactly maxStep if the step reached it.
+     * @throws ArithmeticException if the error cannot be controlled without the step size underflowing.
+     */
+    public double step(RateFunction f, double[] y, int dimension, double maxStep) {
+        ensureCapacity(dimension);
+        double[][] a = method.a;
+        double[] e = method.e;
+        int stages = a.length;
+        double exponent = -1.0/(method.errorOrder + 1);
+
+        if (!valid) {
+            f.getRate(y, k[0]);
+            valid = true;
+        }
+
+        while (true) {
+            double h = Math.min(stepSize, maxStep);
+
+            // Stages; the last one is evaluated at the new solution
+            for (int s = 1; s < stages; s++) {
+                double[] as = a[s];
+                for (int m = 0; m < dimension; m++) {
+                    double sum = 0;
+                    for (int j = 0; j < s; j++) {
+                        sum += as[j] * k[j][m];
+                    }
+                    yStage[m] = y[m] + h * sum;
+                }
+                f.getRate(yStage, k[s]);
+            }
+
+            // Scaled error estimate (maximum norm)
+            double error = 0;
+            for (int m = 0; m < dimension; m++) {
+                double sum = 0;
+                for (int j = 0; j < stages; j++) {
+                    sum += e[j] * k[j][m];
+                }
+                double scale = absTol + relTol * Math.max(Math.abs(y[m]), Math.abs(yStage[m]));
+                error = Math.max(error, Math.abs(h * sum) / scale);
+            }
+
+            if (error <= 1.0) {
+                // Accept: the last stage is the first of the next step
+                System.arraycopy(yStage, 0, y, 0, dimension);
+                double[] swap = k[0];
+                k[0] = k[stages - 1];
+                k[stages - 1] = swap;
+
+                double factor = (error == 0) ? 5.0 : Math.min(5.0, 0.9 * Math.pow(error, exponent));
+                if (h == stepSize || factor < 1.0) stepSize = h * Math.max(1.0, factor);
+                return h;
+            }
+
+            // Reject (including a NaN error) and retry with a smaller step
+            double factor = (error > 0) ? Math.max(0.2, 0.9 * Math.pow(error, exponent)) : 0.2;
+            stepSize = h * factor;
+            if (!(stepSize >= minStepSize)) {
+                throw new ArithmeticException("Relaxation step size underflow (error estimate " + error + ")");
+            }
+        }
+    }
+
+    void ensureCapacity(int dimension) {
+        if (yStage.length < dimension) {
+            int capacity = Math.max(dimension, yStage.length + yStage.length/2);
+            yStage = new double[capacity];
+            for (int s = 0; s < k.length; s++) {
+                k[s] = Arrays.copyOf(k[s], capacity);
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.opensourcephysics.numerics.ode_solvers.SolverEngineDiscreteTime;
 import org.opensourcephysics.numerics.ode_solvers.rk.*;
 import org.opensourcephysics.numerics.ode_solvers.symplectic.VelocityVerlet;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -13,6 +14,19 @@ import java.util.List;
 public class RelaxationMover implements Mover {
 
     List<BSimCapsuleBacterium> allBacteria;
+    /** Array store of the bacteria, loaded at the start of each relaxation. */
+    CapsulePopulation population = new CapsulePopulation();
+
+    /**
+     * Early termination of the relaxation: it stops once no endpoint moves faster than this over a solver step
+     * (microns per unit relaxation time). 0 (the default) always integrates the full relaxation horizon.
+     */
+    double relaxationTolerance = 0;
+    /** Endpoints at the start of the current solver step, for the convergence test. */
+    double[] previousEndpoints = new double[0];
+    /** RHS evaluations, and relaxation time integrated, during the last call to move(). */
+    int rhsEvaluations;
+    double relaxationTime;
 
     public RelaxationMover(List<BSimCapsuleBacterium> _allBacteria){
         this.allBacteria = _allBacteria;
@@ -22,6 +36,44 @@ public class RelaxationMover implements Mover {
         return this.allBacteria.size();
     }
 
+    /**
+     * Sets the convergence tolerance for early termination of the relaxation, as the maximum endpoint speed
+     * (microns per unit relaxation time) over a solver step below which the bacteria are considered relaxed;
+     * 0 disables early termination.
+     */
+    public void setRelaxationTolerance(double relaxationTolerance){
+        this.relaxationTolerance = relaxationTolerance;
+    }
+
+    public double getRelaxationTolerance(){
+        return relaxationTolerance;
+    }
+
+    /** Returns the number of RHS (force) evaluations used by the last call to move(). */
+    public int getRhsEvaluations(){
+        return rhsEvaluations;
+    }
+
+    /** Returns the relaxation time integrated by the last call to move(), less than the horizon if it converged early. */
+    public double getRelaxationTime(){
+        return relaxationTime;
+    }
+
+    /**
+     * Returns the largest endpoint speed between the state at the start of the solver step (previousEndpoints)
+     * and y, over a step of length dt.
+     */
+    double maxEndpointSpeed(double[] y, int n, double dt){
+        double maxSq = 0;
+        for(int k = 0; k < 6*n; k += 3){
+            double dx = y[k] - previousEndpoints[k];
+            double dy = y[k + 1] - previousEndpoints[k + 1];
+            double dz = y[k + 2] - previousEndpoints[k + 2];
+            maxSq = Math.max(maxSq, dx*dx + dy*dy + dz*dz);
+        }
+        return Math.sqrt(maxSq)/dt;
+    }
+
     public void move() {
         /**
          * -1. Compute the velocities and integrate these...
@@ -72,7 +124,12 @@ public class RelaxationMover implements Mover {
         double T_RELAX = 5.0;
         double DT_RELAX = 0.1;
 
+        rhsEvaluations = 0;
+        relaxationTime = 0;
+
         for(int iter = 0; iter < OUTER_ITER; iter++) {
+            population.load(allBacteria);
+
             // Construct ODEs for solving all contact constraints
             ODE moverEquations = new MoverODESystem();
 
@@ -105,32 +162,34 @@ public class RelaxationMover implements Mover {
             solver.setHistoryLength(5); // Don't recall all past values
             solver.setEnableExceptions(false); // Do not throw exceptions when an error occurs
 
-            // Solve for the whole [initTime,maxTime] interval at once
-            // TODO: solve based on a threshold (i.e., delta force or delta positions)
+            // Solve over the [initTime,maxTime] interval, or until the bacteria have relaxed
+            double[] state = moverEquations.getState();
+            int n = getSystemDimension();
+            if(relaxationTolerance > 0 && previousEndpoints.length < 6*n) previousEndpoints = new double[6*n];
             while (solver.getCurrentTime() < maxTime) {
 //            System.out.println("Hello - stepping solver");
 //            System.out.println ("Advancing the solution from " + solver.getCurrentTime());
 
+                double stepStart = solver.getCurrentTime();
+                if (relaxationTolerance > 0) System.arraycopy(state, 0, previousEndpoints, 0, 6*n);
+
                 solver.step();
                 if (solver.getErrorCode() != InterpolatorEventSolver.ERROR.NO_ERROR) {
                     System.err.println("Error when advancing the solution from " + solver.getCurrentTime());
                     return;
                 }
+
+                // Converged: no endpoint is moving faster than the tolerance
+                if (relaxationTolerance > 0 &&
+                        maxEndpointSpeed(state, n, solver.getCurrentTime() - stepStart) < relaxationTolerance) {
+                    break;
+                }
             }
+            relaxationTime += solver.getCurrentTime();
 
             // Pipe the solution back into the bacteria
-            // Temporary storage for new (velocities and) positions at each iteration of the integration
-            double y_new[] = moverEquations.getState();
-            assert y_new.length == getSystemDimension() * 6 + 1;
-            int bac_i = 0;
-            for (BSimCapsuleBacterium b : allBacteria) {
-                b.x1.x = y_new[bac_i++];
-                b.x1.y = y_new[bac_i++];
-                b.x1.z = y_new[bac_i++];
-                b.x2.x = y_new[bac_i++];
-                b.x2.y = y_new[bac_i++];
-                b.x2.z = y_new[bac_i++];
-            }
+            System.arraycopy(state, 0, population.endpoints, 0, state.length);
+            population.storeEndpoints();
         }
 
     }
@@ -139,25 +198,14 @@ public class RelaxationMover implements Mover {
         private double[] mState;
 
         /**
-         * Build the vector of initial state variables.
+         * The state is a copy of the endpoint column of the population store: (x1, x2) for each bacterium, then
+         * time. The solver takes its dimension from the length of the state, so it is sized exactly.
          */
         MoverODESystem() {
-            // Temporary storage for new (velocities and) positions at each iteration of the integration
-            this.mState = new double[getSystemDimension()*6 + 1];
-
-            // Assign into y the initial conditions (current state of capsular bacteria)
-            int bac_i = 0;
-            for(BSimCapsuleBacterium b : allBacteria){
-                mState[bac_i++] = b.x1.x;
-                mState[bac_i++] = b.x1.y;
-                mState[bac_i++] = b.x1.z;
-                mState[bac_i++] = b.x2.x;
-                mState[bac_i++] = b.x2.y;
-                mState[bac_i++] = b.x2.z;
-            }
+            this.mState = Arrays.copyOf(population.endpoints, population.stateLength());
 
             // Remember to include time as the final state variable...
-            mState[bac_i] = 0;
+            mState[mState.length - 1] = 0;
         }
 
         /**
@@ -177,66 +225,48 @@ public class RelaxationMover implements Mover {
          */
         @Override
         public void getRate(double[] y, double[] dy) {
+            rhsEvaluations++;
+
+            int n = population.size();
 
             // Positions for all cells are updated for this integration iteration.
             // We will be accessing these later on to compute collision/intersection.
-            int bac_i = 0;
-            for(BSimCapsuleBacterium b : allBacteria){
-                // Pretty dirty syntax...
-                b.x1.x = y[bac_i++];
-                b.x1.y = y[bac_i++];
-                b.x1.z = y[bac_i++];
-                b.x2.x = y[bac_i++];
-                b.x2.y = y[bac_i++];
-                b.x2.z = y[bac_i++];
+            for(int i = 0; i < n; i++){
+                BSimCapsuleBacterium b = population.get(i);
+                population.setEndpoints(i, y);
 
                 b.x1force.set(0.0, 0.0, 0.0);
                 b.x2force.set(0.0, 0.0, 0.0);
             }
 
-//                forceAccumulator = 0;
-
-            for (BSimCapsuleBacterium b : allBacteria) {
+            // Self and wall forces, which the bacteria accumulate themselves (they may be overridden)...
+            // dpos/dt = force... We are concerned with a viscous regime...
+            for(int i = 0; i < n; i++){
+                BSimCapsuleBacterium b = population.get(i);
                 b.computeSelfForce();
                 b.computeWallForce();
-            }
 
-            // Interaction
-            int bacteriaSize = getSystemDimension();
-            int j = 1;
+                int bac_i = 6*i;
+                dy[bac_i] = b.x1force.x;
+                dy[bac_i + 1] = b.x1force.y;
+                dy[bac_i + 2] = b.x1force.z;
+                dy[bac_i + 3] = b.x2force.x;
+                dy[bac_i + 4] = b.x2force.y;
+                dy[bac_i + 5] = b.x2force.z;
+            }
 
+            // Interaction, accumulated straight into the rate
             // Dirty somewhat >> O(n^2) factorial loop...
             // TODO: Replace this with a gridded method.
-            for (BSimCapsuleBacterium b1 : allBacteria) {
-
-                List<BSimCapsuleBacterium> remainingBacteria = allBacteria.subList(j, bacteriaSize);
-
-                for (BSimCapsuleBacterium b2 : remainingBacteria) {
-                    b1.computeNeighbourForce(b2);
+            for(int i = 0; i < n; i++){
+                BSimCapsuleBacterium b1 = population.get(i);
+                for(int j = i + 1; j < n; j++){
+                    b1.computeNeighbourForce(population.get(j), dy, 6*i, 6*j);
                 }
-                j += 1;
             }
 
-//                for (BSimCapsuleBacterium b : allBacteria) {
-//
-//                    forceAccumulator += b.x1force.length();
-//                    forceAccumulator += b.x2force.length();
-//
-//                    b.updatePosition();
-//                }
-
-            // dpos/dt = force... We are concerned with a viscous regime...
-            bac_i = 0;
-            for(BSimCapsuleBacterium b : allBacteria){
-                dy[bac_i++] = b.x1force.x;
-                dy[bac_i++] = b.x1force.y;
-                dy[bac_i++] = b.x1force.z;
-                dy[bac_i++] = b.x2force.x;
-                dy[bac_i++] = b.x2force.y;
-                dy[bac_i++] = b.x2force.z;
-            }
             // And finally, remember to advance time by the appropriate rate...:
-            dy[bac_i] = 1.0;
+            dy[6*n] = 1.0;
         }
     }
 }
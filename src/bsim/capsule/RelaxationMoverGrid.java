@@ -1,14 +1,12 @@
 package bsim.capsule;
 
 import bsim.BSim;
-import org.opensourcephysics.numerics.ODE;
-import org.opensourcephysics.numerics.ode_solvers.InterpolatorEventSolver;
-import org.opensourcephysics.numerics.ode_solvers.SolverEngineDiscreteTime;
-import org.opensourcephysics.numerics.ode_solvers.rk.*;
 
 import javax.vecmath.Vector3d;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * TODO: Finally, we are integrating the positions for all bacteria, so if the integrator is slow that will be a limiting factor.
@@ -17,73 +15,728 @@ import java.util.List;
  */
 public class RelaxationMoverGrid implements Mover {
 
-    class Box {
-        List<BSimCapsuleBacterium> bacsInside;
-
-        public Box(){
-            this.bacsInside = new ArrayList<BSimCapsuleBacterium>();
-        }
-    }
-
     List<BSimCapsuleBacterium> allBacteria;
     BSim sim;
     Vector3d simDims;
-    Box[][] grid;
+
+    /** Grid dimensions, including a layer of padding cells around the domain on every side. */
     int nX;
     int nY;
+    int nZ;
+    /** Widths of the grid cells along each axis, all at least gridCellWidth. */
+    double cellWidthX;
+    double cellWidthY;
+    double cellWidthZ;
+    /** The cell width the grid was built for; see requiredCellWidth(). */
     double gridCellWidth;
-    double originX;
-    double originY;
+    /** Flat index of the overflow bucket, which holds the bacteria outside the grid; it comes after every grid cell. */
+    int overflowCell;
+
+    /** The grid is built with this much room for the required cell width to grow before it must be rebuilt... */
+    static final double GROWTH_MARGIN = 1.1;
+    /** ...and is rebuilt smaller once the required width drops below this fraction of gridCellWidth. */
+    static final double SHRINK_FRACTION = 0.5;
+    /** Cell width for an empty population. */
+    static final double MIN_CELL_WIDTH = 1.0;
+    /** Upper limit on the number of grid cells; the cells are made wider if the domain would need more. */
+    static final long MAX_GRID_CELLS = 1 << 22;
+
+    /**
+     * Cell list, stored counting-sort style in flat primitive arrays.
+     * Grid cell (iX, iY, iZ) has the flat index (iX*nY + iY)*nZ + iZ; the bacteria in an occupied cell c are
+     * bacs[cellIndex[cellStart[c]]] ... bacs[cellIndex[cellStart[c] + cellCount[c] - 1]], in list order.
+     * cellStart is only meaningful for occupied cells.
+     */
+    int[] cellCount;
+    int[] cellStart;
+    int[] cellIndex;
+    /** Occupied grid cells, in ascending order of flat index. */
+    int[] occupiedCells;
+    int nOccupied;
+
+    /** Array store of the bacteria, loaded at the start of each relaxation. */
+    CapsulePopulation population = new CapsulePopulation();
+
+    /** The relaxation integrator and system, kept (with their buffers) for the whole simulation. */
+    final RelaxationIntegrator integrator = new RelaxationIntegrator(RelaxationIntegrator.Method.RK23);
+    final MoverODESystem moverEquations = new MoverODESystem();
+
+    /**
+     * Early termination of the relaxation: it stops once no endpoint moves faster than this at the end of a
+     * solver step (microns per unit relaxation time). 0 (the default) always integrates the full relaxation horizon.
+     */
+    double relaxationTolerance = 0;
+    /** RHS evaluations, and relaxation time integrated, during the last call to move(). */
+    int rhsEvaluations;
+    double relaxationTime;
+
+    /** The bacteria as they were last binned (population.bacteria), and the grid cell that holds each of them. */
+    BSimCapsuleBacterium[] bacs = new BSimCapsuleBacterium[0];
+    int[] bacCell = new int[0];
+    int nBinned;
+
+    /**
+     * Optional neighbour list: the candidate pairs from the grid, filtered down to those within
+     * neighbourInteractionRange() of each other, so that the RHS only visits those.
+     * computeNeighbourForce() gates every pair on the distance between the bacteria's midpoints (position), which
+     * only change in action(), not during the relaxation. So the list is built once per timestep, and is exact for
+     * the whole relaxation: no skin or displacement check is needed.
+     */
+    boolean useNeighbourList = false;
+    /** Pairs, as cell list positions (see cellIndex), in the order the grid traversal visits them. */
+    int[] pairFirst = new int[0];
+    int[] pairSecond = new int[0];
+    int nPairs;
+
+    /** Optional thread pool for parallel evaluation of the RHS; null for sequential evaluation. */
+    ForkJoinPool forcePool;
+    /** Number of grid rows in each chunk of the parallel pair force evaluation. */
+    static final int ROWS_PER_CHUNK = 2;
+    /** Offset force buffers by population index rather than cell list position; see pairForce(). */
+    static final int BY_INDEX = -1;
+    /** Number of bacteria per task in the parallel per-bacterium loops. */
+    static final int BACTERIA_GRAIN = 256;
+    int nChunks;
+    /** First cell list position, and first occupied cell, in each grid row (and one past the end for row nX). */
+    int[] rowSlotStart;
+    int[] rowOccStart;
+    /** Per-chunk force buffers, covering cell list positions chunkSlotLo[k] ... chunkSlotHi[k] - 1. */
+    double[][] chunkForce;
+    int[] chunkSlotLo;
+    int[] chunkSlotHi;
+    /** Each chunk's range of the neighbour list; the pairs from chunkPairStart[nChunks] on involve the overflow bucket. */
+    int[] chunkPairStart;
+
+    /**
+     * Grid offsets of the half shell: this cell, and the 13 of its 26 neighbours that come after it.
+     * Every pair of neighbouring cells is then visited from exactly one of the two.
+     */
+    static final int[] HALF_SHELL_X = {0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1, 1, 1, 1};
+    static final int[] HALF_SHELL_Y = {0, 0, 1, 1, 1, -1, -1, -1, 0, 0, 0, 1, 1, 1};
+    static final int[] HALF_SHELL_Z = {0, 1, -1, 0, 1, -1, 0, 1, -1, 0, 1, -1, 0, 1};
+
+    // Scratch storage for rebinning
+    int[] newCell = new int[0];
+    int[] cellFill;
+    boolean[] cellMarked;
+    int[] markedCells = new int[0];
+    int nMarkedCells;
 
     public RelaxationMoverGrid(List<BSimCapsuleBacterium> _allBacteria, BSim _sim){
         this.sim = _sim;
         this.allBacteria = _allBacteria;
         this.simDims = sim.getBound();
 
-        // Generate the grid
-        // all we need to do each timestep is update where cells are in the grid.
-        double simX = simDims.x;
-        double simY = simDims.y;
+        // The grid itself is generated by rebin(), to suit the bacteria it is given; all we need to do each
+        // timestep is update where cells are in the grid.
+        this.occupiedCells = new int[0];
+        this.cellIndex = new int[0];
+        this.nOccupied = 0;
+        this.nBinned = 0;
+    }
 
-        // An initial approximate (desired) grid cell width.
-        // Care; if this is too small, it is actually possible for cells to
-        //  a) not be able to collide with a cell that is outside of its grid box's neighbours, even though they're slightly overlapping
-        //  b) end up outside the 'bounds' of the domain enclosed by the grid, as a result of a cell division
-        this.gridCellWidth = 6.5;
+    /**
+     * The smallest grid cell width for which the half shell finds every interacting pair: the largest
+     * neighbourInteractionRange() of a bacterium with itself, allowing for it to grow to its division length L_th.
+     * (This assumes, as for the default range, that the range of a pair is at most the larger of the two.)
+     */
+    double requiredCellWidth(int n){
+        double width = MIN_CELL_WIDTH;
+        for(int i = 0; i < n; i++){
+            BSimCapsuleBacterium b = bacs[i];
+            width = Math.max(width, b.neighbourInteractionRange(b) + Math.max(0.0, b.L_th - b.L));
+        }
+        return width;
+    }
 
-        // We want the cell size to be >= minimum width
-        this.nX = (int)Math.floor(simX/gridCellWidth);
-        this.nY = (int)Math.floor(simY/gridCellWidth);
+    /**
+     * Generate an empty grid over the simulation domain, with cells at least the given width.
+     */
+    void buildGrid(double width){
+        int cellsX, cellsY, cellsZ;
+        while(true){
+            // We want the cell size to be >= minimum width
+            cellsX = Math.max(1, (int)Math.floor(simDims.x/width));
+            cellsY = Math.max(1, (int)Math.floor(simDims.y/width));
+            cellsZ = Math.max(1, (int)Math.floor(simDims.z/width));
+            if((long)(cellsX + 2)*(cellsY + 2)*(cellsZ + 2) <= MAX_GRID_CELLS) break;
+            width *= 1.25;
+        }
+        this.gridCellWidth = width;
+        // (A domain narrower than one cell gets a single cell of the full width.)
+        this.cellWidthX = Math.max(simDims.x/cellsX, width);
+        this.cellWidthY = Math.max(simDims.y/cellsY, width);
+        this.cellWidthZ = Math.max(simDims.z/cellsZ, width);
 
-        // Check validity (e.g., if bad aspect ratio domain etc.)
-        assert(nX > 0);
-        assert(nY > 0);
+        // And, we want there to be grid cells on the outside of the domain in case there's an open edge.
+        this.nX = cellsX + 2;
+        this.nY = cellsY + 2;
+        this.nZ = cellsZ + 2;
+        this.overflowCell = nX*nY*nZ;
+
+        // initialise the (empty) cell list
+        int nCells = overflowCell + 1;
+        this.cellCount = new int[nCells];
+        this.cellStart = new int[nCells];
+        this.cellFill = new int[nCells];
+        this.cellMarked = new boolean[nCells];
+        this.nOccupied = 0;
+        this.nBinned = 0;
+        this.nMarkedCells = 0;
+
+        // The chunks of rows for parallel evaluation are laid out again
+        this.rowSlotStart = null;
+    }
 
-        // TODO: max(simX/nX, simY/nX)? in case of narrow domain for example?
-        this.gridCellWidth = simX/(float)nX;
+    /**
+     * Flat index of the grid cell containing the midpoint of bacterium i, or of the overflow bucket if that is
+     * outside the grid (or undefined).
+     */
+    int cellOf(int i){
+        double[] midpoints = population.midpoints;
+        double bInX = Math.floor(midpoints[3*i]/cellWidthX) + 1;
+        double bInY = Math.floor(midpoints[3*i + 1]/cellWidthY) + 1;
+        double bInZ = Math.floor(midpoints[3*i + 2]/cellWidthZ) + 1;
+        if(!(bInX >= 0 && bInX < nX && bInY >= 0 && bInY < nY && bInZ >= 0 && bInZ < nZ)){
+            return overflowCell;
+        }
+        return ((int)bInX*nY + (int)bInY)*nZ + (int)bInZ;
+    }
 
-        // And, we want there to be grid cells on the outside of the domain in case there's an open edge.
-        this.nX += 2;
-        this.nY += 2;
-
-        simX += gridCellWidth;
-        simY += gridCellWidth;
-        this.originX = -gridCellWidth;
-        this.originY = -gridCellWidth;
-
-        // initialise the grid
-        this.grid = new Box[nX][nY];
-        for(int iX = 0; iX < nX; iX++){
-            for(int iY = 0; iY < nY; iY++){
-                grid[iX][iY] = new Box();
+    /** Grid row (x index) of a cell; the overflow bucket is in row nX. */
+    int rowOf(int cell){
+        return cell/(nY*nZ);
+    }
+
+    /**
+     * Load the bacteria into the population store, and update the cell list to their current midpoints.
+     * If the list of bacteria is unchanged since the last call, only the bacteria whose midpoint crossed a cell
+     * boundary are moved, one by one (see moveBetweenCells()), and if nobody crossed nothing changes at all.
+     * Moving a bacterium shifts the cell list between its old and new cell, so once the crossers have shifted
+     * more than the whole list, the rest are binned by rebuilding it: the occupied cells are recollected from
+     * the marked ones, and the whole of cellIndex is rewritten by the counting sort. That is also done when
+     * bacteria were added or removed (at or after the first difference in the list), which counts them as
+     * crossers. The grid is regenerated first if its cells are too narrow for the bacteria, or much wider than
+     * they need.
+     */
+    void rebin(){
+        int unchanged = population.load(allBacteria);
+        int n = population.size();
+        bacs = population.bacteria;
+
+        double required = requiredCellWidth(n);
+        if(cellCount == null || required > gridCellWidth || required < SHRINK_FRACTION*gridCellWidth){
+            buildGrid(GROWTH_MARGIN*required);
+            unchanged = 0;
+        }
+        if(bacCell.length < n){
+            int capacity = Math.max(n, 2*bacCell.length);
+            bacCell = Arrays.copyOf(bacCell, capacity);
+            newCell = new int[capacity];
+            cellIndex = Arrays.copyOf(cellIndex, capacity);
+        }
+
+        int i;
+        for(i = 0; i < n; i++){
+            newCell[i] = cellOf(i);
+        }
+
+        // Only moves: shift the crossers into their new cells while that costs less than rebuilding the list
+        int first = 0;
+        if(unchanged == nBinned && unchanged == n){
+            long budget = n;
+            while(first < n && budget >= 0){
+                if(newCell[first] != bacCell[first]) budget -= moveBetweenCells(first, bacCell[first], newCell[first]);
+                first++;
+            }
+            if(budget >= 0) return;
+        }
+
+        // Mark every cell that was occupied, or may now be occupied
+        boolean changed = (unchanged < nBinned || unchanged < n);
+        for(i = first; i < unchanged; i++){
+            if(newCell[i] != bacCell[i]){
+                cellCount[bacCell[i]]--;
+                cellCount[newCell[i]]++;
+                bacCell[i] = newCell[i];
+                mark(newCell[i]);
+                changed = true;
+            }
+        }
+        // Bacteria that have left the list, or been replaced...
+        for(i = unchanged; i < nBinned; i++){
+            cellCount[bacCell[i]]--;
+            mark(bacCell[i]);
+        }
+        // ...and bacteria that have joined it
+        for(i = unchanged; i < n; i++){
+            bacCell[i] = newCell[i];
+            cellCount[newCell[i]]++;
+            mark(newCell[i]);
+        }
+        nBinned = n;
+
+        // Nobody changed cell; the cell list is still valid.
+        if(!changed) return;
+        for(int o = 0; o < nOccupied; o++) mark(occupiedCells[o]);
+
+        // Collect the occupied cells among the marked ones, in ascending order
+        int nMarked = 0;
+        for(int o = 0; o < nMarkedCells; o++){
+            int cell = markedCells[o];
+            cellMarked[cell] = false;
+            if(cellCount[cell] > 0) markedCells[nMarked++] = cell;
+        }
+        nMarkedCells = 0;
+        Arrays.sort(markedCells, 0, nMarked);
+        if(occupiedCells.length < nMarked) occupiedCells = new int[markedCells.length];
+        System.arraycopy(markedCells, 0, occupiedCells, 0, nMarked);
+        nOccupied = nMarked;
+
+        // Counting sort of the bacteria into their cells
+        int start = 0;
+        for(int o = 0; o < nOccupied; o++){
+            int cell = occupiedCells[o];
+            cellStart[cell] = start;
+            cellFill[cell] = start;
+            start += cellCount[cell];
+        }
+        for(i = 0; i < n; i++){
+            cellIndex[cellFill[bacCell[i]]++] = i;
+        }
+    }
+
+    /**
+     * Move bacterium i, which has not been added or removed, from cell a to cell b of the cell list, keeping
+     * the order of the list: the positions between its old and new place shift by one, as do the starts of
+     * the occupied cells between a and b. Returns the number of positions and cells shifted.
+     */
+    long moveBetweenCells(int i, int a, int b){
+        int p = cellStart[a];
+        while(cellIndex[p] != i) p++;
+        long work = p - cellStart[a];
+
+        // An empty cell b joins the occupied cells, starting where the next occupied cell starts
+        int ob = Arrays.binarySearch(occupiedCells, 0, nOccupied, b);
+        if(ob < 0){
+            ob = -ob - 1;
+            if(nOccupied == occupiedCells.length) occupiedCells = Arrays.copyOf(occupiedCells, Math.max(16, 2*nOccupied));
+            System.arraycopy(occupiedCells, ob, occupiedCells, ob + 1, nOccupied - ob);
+            occupiedCells[ob] = b;
+            nOccupied++;
+            cellStart[b] = (ob + 1 < nOccupied) ? cellStart[occupiedCells[ob + 1]] : nBinned;
+            work += nOccupied - ob;
+        }
+        int oa = Arrays.binarySearch(occupiedCells, 0, nOccupied, a);
+
+        // Where i goes among the bacteria of b, which are in list order
+        int r = cellStart[b];
+        int endB = r + cellCount[b];
+        while(r < endB && cellIndex[r] < i) r++;
+        if(b > a){
+            System.arraycopy(cellIndex, p + 1, cellIndex, p, r - 1 - p);
+            cellIndex[r - 1] = i;
+            for(int o = oa + 1; o <= ob; o++) cellStart[occupiedCells[o]]--;
+            work += (r - p) + (ob - oa);
+        } else {
+            System.arraycopy(cellIndex, r, cellIndex, r + 1, p - r);
+            cellIndex[r] = i;
+            for(int o = ob + 1; o <= oa; o++) cellStart[occupiedCells[o]]++;
+            work += (p - r) + (oa - ob);
+        }
+
+        cellCount[a]--;
+        cellCount[b]++;
+        bacCell[i] = b;
+        if(cellCount[a] == 0){
+            System.arraycopy(occupiedCells, oa + 1, occupiedCells, oa, nOccupied - oa - 1);
+            nOccupied--;
+            work += nOccupied - oa;
+        }
+        return work;
+    }
+
+    /** Record a cell as (possibly) occupied; returns 1 if it was not already recorded. */
+    int mark(int cell){
+        if(cellMarked[cell]) return 0;
+        cellMarked[cell] = true;
+        if(nMarkedCells == markedCells.length){
+            markedCells = Arrays.copyOf(markedCells, Math.max(16, 2*markedCells.length));
+        }
+        markedCells[nMarkedCells++] = cell;
+        return 1;
+    }
+
+    /**
+     * Enables the neighbour list, built once per timestep from the grid; if disabled,
+     * the grid is traversed on every RHS evaluation. Results are the same either way.
+     */
+    public void setUseNeighbourList(boolean useNeighbourList){
+        this.useNeighbourList = useNeighbourList;
+    }
+
+    public boolean getUseNeighbourList(){
+        return useNeighbourList;
+    }
+
+    /**
+     * Visit every candidate pair of bacteria in neighbouring grid cells once, for the occupied cells
+     * occupiedCells[occLo] ... occupiedCells[occHi - 1].
+     * If collect is true, the pairs within interaction range are stored in the neighbour list.
+     * Otherwise the neighbour force for every pair is added into force, as described for pairForce().
+     */
+    void gridPairs(int occLo, int occHi, boolean collect, double[] force, int slotBase){
+        int nYZ = nY*nZ;
+
+        // Loop over every occupied grid cell...
+        for(int o = occLo; o < occHi; o++){
+            int cell = occupiedCells[o];
+            int thisStart = cellStart[cell];
+            int thisEnd = thisStart + cellCount[cell];
+
+            if(cell == overflowCell){
+                // The overflow bucket is last in the cell list; pair its bacteria with each other and with everybody
+                for (int a = thisStart; a < thisEnd; a++) {
+                    for (int c = 0; c < thisStart; c++) {
+                        visitPair(a, c, collect, force, slotBase);
+                    }
+                    for (int c = a + 1; c < thisEnd; c++) {
+                        visitPair(a, c, collect, force, slotBase);
+                    }
+                }
+                continue;
+            }
+
+            int iX = cell/nYZ;
+            int iY = (cell - iX*nYZ)/nZ;
+            int iZ = cell - iX*nYZ - iY*nZ;
+
+            // Loop over the half shell of neighbouring grid elements, so that each pair is visited once
+            for(int h = 0; h < HALF_SHELL_X.length; h++){
+                int neighbourX = iX + HALF_SHELL_X[h];
+                int neighbourY = iY + HALF_SHELL_Y[h];
+                int neighbourZ = iZ + HALF_SHELL_Z[h];
+                if(neighbourX >= nX || neighbourY < 0 || neighbourY >= nY || neighbourZ < 0 || neighbourZ >= nZ) continue;
+
+                int neighbourCell = (neighbourX*nY + neighbourY)*nZ + neighbourZ;
+                if(cellCount[neighbourCell] == 0) continue;
+
+                int neighbourStart = cellStart[neighbourCell];
+                int neighbourEnd = neighbourStart + cellCount[neighbourCell];
+
+                // Iterate over all possible pairs of bacteria
+                for (int a = thisStart; a < thisEnd; a++) {
+                    // In the same box, only take each pair once (and never a bacterium with itself)
+                    int first = (neighbourCell == cell) ? a + 1 : neighbourStart;
+                    for (int c = first; c < neighbourEnd; c++) {
+                        visitPair(a, c, collect, force, slotBase);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The pair at cell list positions a and c, for gridPairs(). Pairs beyond their interaction range are skipped
+     * here, with the same midpoint test as computeNeighbourForce() in the same arithmetic, since the kernel would
+     * apply no force to them anyway (and only after some work).
+     */
+    void visitPair(int a, int c, boolean collect, double[] force, int slotBase){
+        double[] midpoints = population.midpoints;
+        int m1 = 3*cellIndex[a];
+        int m2 = 3*cellIndex[c];
+        double range = bacs[cellIndex[a]].neighbourInteractionRange(bacs[cellIndex[c]]);
+        double dx = midpoints[m1] - midpoints[m2];
+        double dy = midpoints[m1 + 1] - midpoints[m2 + 1];
+        double dz = midpoints[m1 + 2] - midpoints[m2 + 2];
+        if (!(Math.sqrt(dx*dx + dy*dy + dz*dz) < range)) return;
+
+        if (collect) {
+            addPair(a, c);
+        } else {
+            pairForce(a, c, force, slotBase);
+        }
+    }
+
+    /**
+     * Compute the neighbour force for the neighbour list pairs pLo ... pHi - 1; force and slotBase as for gridPairs().
+     */
+    void listPairs(int pLo, int pHi, double[] force, int slotBase){
+        for(int p = pLo; p < pHi; p++){
+            pairForce(pairFirst[p], pairSecond[p], force, slotBase);
+        }
+    }
+
+    /**
+     * Add the neighbour force between the bacteria at cell list positions a and c, for both orderings of the pair
+     * (see BSimCapsuleBacterium.computeSymmetricNeighbourForce()), into force: at
+     * 6*(a - slotBase) and 6*(c - slotBase), or, if slotBase is BY_INDEX, at six times their population indices.
+     */
+    void pairForce(int a, int c, double[] force, int slotBase){
+        int i1 = cellIndex[a];
+        int i2 = cellIndex[c];
+        if(slotBase == BY_INDEX){
+            bacs[i1].computeSymmetricNeighbourForce(bacs[i2], force, 6*i1, 6*i2);
+        } else {
+            bacs[i1].computeSymmetricNeighbourForce(bacs[i2], force, 6*(a - slotBase), 6*(c - slotBase));
+        }
+    }
+
+    void addPair(int first, int second){
+        if(nPairs == pairFirst.length){
+            int capacity = Math.max(64, 2*pairFirst.length);
+            pairFirst = Arrays.copyOf(pairFirst, capacity);
+            pairSecond = Arrays.copyOf(pairSecond, capacity);
+        }
+        pairFirst[nPairs] = first;
+        pairSecond[nPairs] = second;
+        nPairs++;
+    }
+
+    /**
+     * Build the neighbour list from the current cell list.
+     */
+    void buildPairList(){
+        nPairs = 0;
+        gridPairs(0, nOccupied, true, null, BY_INDEX);
+
+        // The pairs are ordered by the cell list position of their first bacterium, so each chunk's are contiguous
+        int p = 0;
+        for(int k = 0; k < nChunks; k++){
+            int slotEnd = rowSlotStart[Math.min((k + 1)*ROWS_PER_CHUNK, nX)];
+            chunkPairStart[k] = p;
+            while(p < nPairs && pairFirst[p] < slotEnd) p++;
+        }
+        chunkPairStart[nChunks] = p;
+    }
+
+    /**
+     * Enables parallel evaluation of the relaxation RHS on the given number of threads; threads <= 0 disables it.
+     * Grid rows are split into fixed chunks of ROWS_PER_CHUNK rows, each accumulating its pair forces into its own
+     * buffer, and the buffers are then summed in chunk order. The chunks do not depend on the number of threads,
+     * so results are bit-identical for any thread count (but differ by round-off from the sequential evaluation,
+     * which sums the pair forces in a different order).
+     *
+     * computeSelfForce() and computeWallForce() are then called concurrently for different bacteria, and
+     * computeNeighbourForce(neighbour, force, ...) concurrently for different pairs, so subclasses overriding
+     * these must only modify their own state (respectively, only the force array).
+     *
+     * Call shutdown() (or setForceThreads(0)) to release the threads when the mover is no longer needed.
+     */
+    public void setForceThreads(int threads){
+        if(forcePool != null) forcePool.shutdown();
+        forcePool = (threads > 0) ? new ForkJoinPool(threads) : null;
+    }
+
+    /** Releases the threads used for parallel evaluation of the RHS; the mover reverts to sequential evaluation. */
+    public void shutdown(){
+        setForceThreads(0);
+    }
+
+    /** Returns the number of threads used to evaluate the relaxation RHS, 0 if it is evaluated sequentially. */
+    public int getForceThreads(){
+        return (forcePool == null) ? 0 : forcePool.getParallelism();
+    }
+
+    /**
+     * Split the occupied cells and cell list positions into chunks of grid rows (slabs of constant x index), for
+     * parallel evaluation. The overflow bucket is in no chunk.
+     */
+    void layoutChunks(){
+        if(rowSlotStart == null){
+            rowSlotStart = new int[nX + 1];
+            rowOccStart = new int[nX + 1];
+            nChunks = (nX + ROWS_PER_CHUNK - 1)/ROWS_PER_CHUNK;
+            chunkForce = new double[nChunks][0];
+            chunkSlotLo = new int[nChunks];
+            chunkSlotHi = new int[nChunks];
+            chunkPairStart = new int[nChunks + 1];
+        }
+
+        int o = 0;
+        for(int r = 0; r <= nX; r++){
+            while(o < nOccupied && rowOf(occupiedCells[o]) < r) o++;
+            rowOccStart[r] = o;
+            rowSlotStart[r] = (o < nOccupied) ? cellStart[occupiedCells[o]] : nBinned;
+        }
+
+        // With the half shell, each chunk's pairs reach at most one row past it
+        for(int k = 0; k < nChunks; k++){
+            int rowLo = k*ROWS_PER_CHUNK;
+            int rowHi = Math.min(rowLo + ROWS_PER_CHUNK, nX);
+            chunkSlotLo[k] = rowSlotStart[rowLo];
+            chunkSlotHi[k] = rowSlotStart[Math.min(rowHi + 1, nX)];
+            int size = 6*(chunkSlotHi[k] - chunkSlotLo[k]);
+            if(chunkForce[k].length < size) chunkForce[k] = new double[size + size/2];
+        }
+    }
+
+    /**
+     * Parallel version of MoverODESystem.getRate().
+     */
+    void getRateParallel(final double[] y, final double[] dy){
+        final int n = nBinned;
+
+        // Positions, then self and wall forces, for each bacterium
+        parallelFor(n, BACTERIA_GRAIN, new RangeBody() {
+            public void run(int lo, int hi) {
+                for(int i = lo; i < hi; i++){
+                    BSimCapsuleBacterium b = bacs[i];
+                    population.setEndpoints(i, y);
+                    b.x1force.set(0.0, 0.0, 0.0);
+                    b.x2force.set(0.0, 0.0, 0.0);
+                    b.computeSelfForce();
+                    b.computeWallForce();
+                }
+            }
+        });
+
+        // Pair forces, each chunk of rows into its own buffer
+        parallelFor(nChunks, 1, new RangeBody() {
+            public void run(int lo, int hi) {
+                for(int k = lo; k < hi; k++){
+                    double[] force = chunkForce[k];
+                    Arrays.fill(force, 0, 6*(chunkSlotHi[k] - chunkSlotLo[k]), 0.0);
+                    if(useNeighbourList){
+                        listPairs(chunkPairStart[k], chunkPairStart[k + 1], force, chunkSlotLo[k]);
+                    } else {
+                        int rowLo = k*ROWS_PER_CHUNK;
+                        int rowHi = Math.min(rowLo + ROWS_PER_CHUNK, nX);
+                        gridPairs(rowOccStart[rowLo], rowOccStart[rowHi], false, force, chunkSlotLo[k]);
+                    }
+                }
+            }
+        });
+
+        // Reduction: self and wall forces, then each chunk's contribution in chunk order
+        parallelFor(n, BACTERIA_GRAIN, new RangeBody() {
+            public void run(int lo, int hi) {
+                for(int a = lo; a < hi; a++){
+                    int i = cellIndex[a];
+                    BSimCapsuleBacterium b = bacs[i];
+                    double f0 = b.x1force.x, f1 = b.x1force.y, f2 = b.x1force.z;
+                    double f3 = b.x2force.x, f4 = b.x2force.y, f5 = b.x2force.z;
+
+                    // (The overflow bucket, in row nX, is in no chunk)
+                    int row = rowOf(bacCell[i]);
+                    int kLo = Math.max(row - 1, 0)/ROWS_PER_CHUNK;
+                    int kHi = (row < nX) ? row/ROWS_PER_CHUNK : kLo - 1;
+                    for(int k = kLo; k <= kHi; k++){
+                        double[] force = chunkForce[k];
+                        int offset = 6*(a - chunkSlotLo[k]);
+                        f0 += force[offset];
+                        f1 += force[offset + 1];
+                        f2 += force[offset + 2];
+                        f3 += force[offset + 3];
+                        f4 += force[offset + 4];
+                        f5 += force[offset + 5];
+                    }
+
+                    int bac_i = 6*i;
+                    dy[bac_i] = f0;
+                    dy[bac_i + 1] = f1;
+                    dy[bac_i + 2] = f2;
+                    dy[bac_i + 3] = f3;
+                    dy[bac_i + 4] = f4;
+                    dy[bac_i + 5] = f5;
+                }
+            }
+        });
+
+        // Pairs with the overflow bucket reach the whole cell list, so they are added last, sequentially
+        if(useNeighbourList){
+            listPairs(chunkPairStart[nChunks], nPairs, dy, BY_INDEX);
+        } else {
+            gridPairs(rowOccStart[nX], nOccupied, false, dy, BY_INDEX);
+        }
+
+        // And finally, remember to advance time by the appropriate rate...:
+        dy[6*n] = 1.0;
+    }
+
+    /** A loop body over the index range [lo, hi). */
+    interface RangeBody {
+        void run(int lo, int hi);
+    }
+
+    /** Splits [lo, hi) in halves until ranges are at most grain long, and runs the body on those. */
+    static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int lo, hi, grain;
+        final RangeBody body;
+
+        RangeTask(int lo, int hi, int grain, RangeBody body){
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute(){
+            if(hi - lo <= grain){
+                body.run(lo, hi);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new RangeTask(lo, mid, grain, body), new RangeTask(mid, hi, grain, body));
             }
         }
     }
 
+    void parallelFor(int n, int grain, RangeBody body){
+        if(n > 0) forcePool.invoke(new RangeTask(0, n, grain, body));
+    }
+
     public int getSystemDimension(){
         return this.allBacteria.size();
     }
 
+    /**
+     * Sets the convergence tolerance for early termination of the relaxation, as the maximum endpoint speed
+     * (microns per unit relaxation time) at the end of a solver step below which the bacteria are considered relaxed;
+     * 0 disables early termination.
+     */
+    public void setRelaxationTolerance(double relaxationTolerance){
+        this.relaxationTolerance = relaxationTolerance;
+    }
+
+    public double getRelaxationTolerance(){
+        return relaxationTolerance;
+    }
+
+    /** Returns the number of RHS (force) evaluations used by the last call to move(). */
+    public int getRhsEvaluations(){
+        return rhsEvaluations;
+    }
+
+    /** Returns the relaxation time integrated by the last call to move(), less than the horizon if it converged early. */
+    public double getRelaxationTime(){
+        return relaxationTime;
+    }
+
+    /**
+     * Sets the integrator used for the relaxation (RK23, the default, or RK45).
+     */
+    public void setIntegrator(RelaxationIntegrator.Method method){
+        integrator.setMethod(method);
+    }
+
+    public RelaxationIntegrator.Method getIntegrator(){
+        return integrator.getMethod();
+    }
+
+    /**
+     * Returns the largest endpoint speed in the rate dy, i.e. the largest net force on an endpoint.
+     */
+    static double maxEndpointSpeed(double[] dy, int n){
+        double maxSq = 0;
+        for(int k = 0; k < 6*n; k += 3){
+            maxSq = Math.max(maxSq, dy[k]*dy[k] + dy[k + 1]*dy[k + 1] + dy[k + 2]*dy[k + 2]);
+        }
+        return Math.sqrt(maxSq);
+    }
+
     public void move() {
         // Before solving the position constraint, we need to compute other velocities
         // (flow etc.) and apply these to the cells.
@@ -94,128 +747,60 @@ public class RelaxationMoverGrid implements Mover {
         }
 
         int OUTER_ITER = 1;
-        SolverEngineDiscreteTime SOLVER = new BogackiShampine23();
         double T_RELAX = 2.0;
         double DT_RELAX = 0.01;
 
+        rhsEvaluations = 0;
+        relaxationTime = 0;
+
         for(int iter = 0; iter < OUTER_ITER; iter++) {
             // For a first approximation.
             // The bacteria should not move a 'significant' relative distance in the grid.
             // Therefore we can generate the grid once per timestep, for now.
-            // Updating the grid could be optimised to make use of temporal coherence between timesteps.
-            for(int iX = 0; iX < nX; iX++){
-                for(int iY = 0; iY < nY; iY++){
-                    grid[iX][iY].bacsInside.clear();
-                }
-            }
-
-            for(BSimCapsuleBacterium b : allBacteria){
-                int bInX = (int)Math.floor(b.position.x/gridCellWidth) + 1;
-                int bInY = (int)Math.floor(b.position.y/gridCellWidth) + 1;
-//                if(bInX >= nX || bInY >= nY){
-//                    System.out.println();
-//                }
-                grid[bInX][bInY].bacsInside.add(b);
-            }
-
-
-            // Construct ODEs for solving all contact constraints
-            ODE moverEquations = new MoverODESystem();
-
-            // Solve the contact constraint system
-            final double maxTime = T_RELAX;
-
-            // Solver and its parameters
-            // Fehlberg family seem to provide a nice solution
-            // Some others (Dopri?) are perhaps over-correcting;
-            // They are not necessarily stable. Cash-carp is always unstable (practically); Dopri seem to become unstable
-            // under certain conditions; Some of the adaptive ones are 'transiently' unstable i.e., they may exhibit some
-            // 'jumping', of small amplitude, between time-steps, but will overall remain stable (no bacsplosions).
-            /**
-             * SolverEngineDiscreteTime: (not adaptive... I think)
-             * Euler; EulerRichardson; Fehlberg8; RK4
-             *
-             * SolverEngineDiscreteTimeAdaptive extends SolverEngineDiscreteTime:
-             * BogackiShampine23; CashCarp45; Dopri5; Dopri853; Fehlberg78
-             */
-            InterpolatorEventSolver solver = new InterpolatorEventSolver(SOLVER, moverEquations);
-
-            double stepSize = DT_RELAX; // The initial step size (used by fixed step methods)
-            double plotStepSize = 0.1; // The step size for plotting the solution
-            final double absTol = 1.0e-6, relTol = 1.0e-3; // The tolerance for adaptive methods
-
-            // Initialize and customize the solver
-            solver.initialize(stepSize);       // This step size affects the solver internal step size
-            solver.setStepSize(plotStepSize);  // This step size is the reading step size
-            solver.setTolerances(absTol, relTol);
-            solver.setHistoryLength(5); // Don't recall all past values
-            solver.setEnableExceptions(false); // Do not throw exceptions when an error occurs
-
-            // Solve for the whole [initTime,maxTime] interval at once
-            // TODO: solve based on a threshold (i.e., delta force or delta positions)
-            while (solver.getCurrentTime() < maxTime) {
-//            System.out.println("Hello - stepping solver");
-//            System.out.println ("Advancing the solution from " + solver.getCurrentTime());
-
-                solver.step();
-                if (solver.getErrorCode() != InterpolatorEventSolver.ERROR.NO_ERROR) {
-                    System.err.println ("Error when advancing the solution from " + solver.getCurrentTime());
+            // The cell list makes use of temporal coherence between timesteps; see rebin().
+            rebin();
+            layoutChunks();
+            if(useNeighbourList) buildPairList();
+
+            // Solve the contact constraint system over [0, T_RELAX], or until the bacteria have relaxed.
+            // The state is the endpoint column of the population store, which is integrated in place.
+            double[] state = population.endpoints;
+            int n = getSystemDimension();
+            double time = 0;
+            integrator.initialize(DT_RELAX);
+            while (time < T_RELAX) {
+                double remaining = T_RELAX - time;
+                double h;
+                try {
+                    h = integrator.step(moverEquations, state, population.stateLength(), remaining);
+                } catch (ArithmeticException e) {
+                    System.err.println ("Error when advancing the solution from " + time);
                     System.err.println ("Relaxation ODE solver failed for position constraints,");
-                    System.err.println ("With error: " + solver.getErrorCode());
+                    System.err.println ("With error: " + e.getMessage());
                     System.exit(-42);
-//                    return;
+                    return;
+                }
+                time = (h >= remaining) ? T_RELAX : time + h;
+
+                // Converged: no endpoint is moving faster than the tolerance (the rate at the end of the step
+                // comes for free with the FSAL integrators)
+                if (relaxationTolerance > 0 && maxEndpointSpeed(integrator.getRate(), n) < relaxationTolerance) {
+                    break;
                 }
             }
+            relaxationTime += time;
 
             // Pipe the solution back into the bacteria
-            // Temporary storage for new (velocities and) positions at each iteration of the integration
-            double y_new[] = moverEquations.getState();
-            assert y_new.length == getSystemDimension() * 6 + 1;
-            int bac_i = 0;
-            for (BSimCapsuleBacterium b : allBacteria) {
-                b.x1.x = y_new[bac_i++];
-                b.x1.y = y_new[bac_i++];
-                b.x1.z = y_new[bac_i++];
-                b.x2.x = y_new[bac_i++];
-                b.x2.y = y_new[bac_i++];
-                b.x2.z = y_new[bac_i++];
-            }
+            population.storeEndpoints();
         }
 
     }
 
-    class MoverODESystem implements ODE {
-        private double[] mState;
-
-        /**
-         * Build the vector of initial state variables.
-         */
-        MoverODESystem() {
-            // Temporary storage for new (velocities and) positions at each iteration of the integration
-            this.mState = new double[getSystemDimension()*6 + 1];
-
-            // Assign into y the initial conditions (current state of capsular bacteria)
-            int bac_i = 0;
-            for(BSimCapsuleBacterium b : allBacteria){
-                mState[bac_i++] = b.x1.x;
-                mState[bac_i++] = b.x1.y;
-                mState[bac_i++] = b.x1.z;
-                mState[bac_i++] = b.x2.x;
-                mState[bac_i++] = b.x2.y;
-                mState[bac_i++] = b.x2.z;
-            }
-
-            // Remember to include time as the final state variable...
-            mState[bac_i] = 0;
-        }
-
-        /**
-         * Initial conditions should be the original value of all positions.
-         */
-        @Override
-        public double[] getState() {
-            return mState;
-        }
+    /**
+     * The relaxation system: the state is the endpoint column of the population store, (x1, x2) for each
+     * bacterium, then time.
+     */
+    class MoverODESystem implements RelaxationIntegrator.RateFunction {
 
         /**
          * d pos / dy = force
@@ -224,104 +809,52 @@ public class RelaxationMoverGrid implements Mover {
          *
          * This equation only considers the position constraints.
          */
-        @Override
         public void getRate(double[] y, double[] dy) {
+            rhsEvaluations++;
+
+            if(forcePool != null){
+                getRateParallel(y, dy);
+                return;
+            }
+
+            int n = nBinned;
+
             // Positions for all cells are updated for this integration iteration.
             // We will be accessing these later on to compute collision/intersection.
-            int bac_i = 0;
-            for(BSimCapsuleBacterium b : allBacteria){
-                // Pretty dirty syntax...
-                b.x1.x = y[bac_i++];
-                b.x1.y = y[bac_i++];
-                b.x1.z = y[bac_i++];
-                b.x2.x = y[bac_i++];
-                b.x2.y = y[bac_i++];
-                b.x2.z = y[bac_i++];
+            for(int i = 0; i < n; i++){
+                BSimCapsuleBacterium b = bacs[i];
+                population.setEndpoints(i, y);
 
                 b.x1force.set(0.0, 0.0, 0.0);
                 b.x2force.set(0.0, 0.0, 0.0);
             }
 
-//                forceAccumulator = 0;
-
-            for (BSimCapsuleBacterium b : allBacteria) {
+            // Self and wall forces, which the bacteria accumulate themselves (they may be overridden)...
+            // dpos/dt = force... We are in a viscous regime...
+            for(int i = 0; i < n; i++){
+                BSimCapsuleBacterium b = bacs[i];
                 b.computeSelfForce();
                 b.computeWallForce();
-            }
-
-            // Interaction on a grid...
-
-            List<BSimCapsuleBacterium> bacsThisGridCell = new ArrayList<BSimCapsuleBacterium>();
-            List<BSimCapsuleBacterium> bacsNeighbourGridCell = new ArrayList<BSimCapsuleBacterium>();
-            int prevX, prevY, nextX, nextY;
-
-            // Loop over every grid cell...
-            for(int iX = 0; iX < nX; iX++){
-//                System.out.println("iX: " + iX);
-
-                prevX = iX - 1;
-                nextX = iX + 2;
-                if(prevX < 0) prevX = 0;
-                if(nextX > nX) nextX = nX;
-
-//                System.out.println("pX, nX: " + prevX + ", " + nextX);
-
-                for(int iY = 0; iY < nY; iY++){
 
-                    prevY = iY - 1;
-                    nextY = iY + 2;
-                    if(prevY < 0) prevY = 0;
-                    if(nextY > nY) nextY = nY;
-
-
-                    bacsThisGridCell = grid[iX][iY].bacsInside;
-
-//                    System.out.println("This X,Y: " + iX + ", " + iY);
-//                    System.out.println("Prev X,Y: " + prevX + ", " + prevY);
-//                    System.out.println("Next X,Y: " + nextX + ", " + nextY);
-
-                    // Loop over neighbouring grid elements
-                    for(int neighbourX = prevX; neighbourX < nextX; neighbourX++){
-                        for(int neighbourY = prevY; neighbourY < nextY; neighbourY++) {
-//                            System.out.println("neighbour X,Y: " + neighbourX + ", " + neighbourY);
-                            bacsNeighbourGridCell = grid[neighbourX][neighbourY].bacsInside;
-
-                            // Iterate over all possible pairs of bacteria
-                            for (BSimCapsuleBacterium b1 : bacsThisGridCell) {
-                                for (BSimCapsuleBacterium b2 : bacsNeighbourGridCell) {
-                                    // In the case that we are testing against bacs in the same box...
-                                    // We need to check that we are not doing a self-intersection, which is impossible
-                                    if (b1 != b2) {
-                                        b1.computeNeighbourForce(b2);
-                                    }
-                                }
-                            }
-
-                        }
-                    }
-                }
+                int bac_i = 6*i;
+                dy[bac_i] = b.x1force.x;
+                dy[bac_i + 1] = b.x1force.y;
+                dy[bac_i + 2] = b.x1force.z;
+                dy[bac_i + 3] = b.x2force.x;
+                dy[bac_i + 4] = b.x2force.y;
+                dy[bac_i + 5] = b.x2force.z;
             }
 
-//                for (BSimCapsuleBacterium b : allBacteria) {
-//
-//                    forceAccumulator += b.x1force.length();
-//                    forceAccumulator += b.x2force.length();
-//
-//                    b.updatePosition();
-//                }
+            // Interaction on a grid, accumulated straight into the rate
 
-            // dpos/dt = force... We are in a viscous regime...
-            bac_i = 0;
-            for(BSimCapsuleBacterium b : allBacteria){
-                dy[bac_i++] = b.x1force.x;
-                dy[bac_i++] = b.x1force.y;
-                dy[bac_i++] = b.x1force.z;
-                dy[bac_i++] = b.x2force.x;
-                dy[bac_i++] = b.x2force.y;
-                dy[bac_i++] = b.x2force.z;
+            if(useNeighbourList){
+                listPairs(0, nPairs, dy, BY_INDEX);
+            } else {
+                gridPairs(0, nOccupied, false, dy, BY_INDEX);
             }
+
             // And finally, remember to advance time by the appropriate rate...:
-            dy[bac_i] = 1.0;
+            dy[6*n] = 1.0;
         }
     }
 }
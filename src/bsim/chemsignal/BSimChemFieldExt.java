@@ -35,13 +35,7 @@ public void extModSignal( double period, double amplitude, double disp, double s
 		 
 		double qtyTOTAL = (amplitude*Math.sin(timepoint*2*Math.PI/period) + disp)*1e15*timestep ;
 	 	double qtyperbox = qtyTOTAL/(this.getBoxes()[0]*this.getBoxes()[1]*this.getBoxes()[2]);
-	 	for(int i=0;i<this.boxes[0];i++){
-		 	for(int j=0;j<this.boxes[1] ;j++){
-			 	for(int k=0;k<this.boxes[2];k++){
-				 	this.addQuantity(i, j, k, qtyperbox);
-			 	}
-		 	}
-	 	}
+	 	this.addQuantity(qtyperbox);
 	 }
 }
 
@@ -55,13 +49,7 @@ public void extConstantAdd(double amount){
 	double timestep = sim.getDt();
 	double qtytoadd = amount * 1e15*timestep;
 	double qtyperbox = qtytoadd/(this.boxes[0]*this.boxes[1]*this.boxes[2]);
- 	for(int i=0;i<this.boxes[0];i++){
-	 	for(int j=0;j<this.boxes[1] ;j++){
-		 	for(int k=0;k<this.boxes[2];k++){
-			 	this.addQuantity(i, j, k, qtyperbox);
-		 	}
-	 	}
- 	}
+ 	this.addQuantity(qtyperbox);
 }
 
 
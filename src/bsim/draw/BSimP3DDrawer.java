@@ -20,6 +20,8 @@ import processing.core.PGraphics3D;
 
 import bsim.BSim;
 import bsim.BSimChemicalField;
+import bsim.BSimChemicalField2D;
+import bsim.BSimLinearOctreeField;
 import bsim.BSimOctreeField;
 import bsim.geometry.BSimMesh;
 import bsim.geometry.BSimTriangle;
@@ -312,6 +314,10 @@ public abstract class BSimP3DDrawer extends BSimDrawer {
 	 * @param alphaMax	Maximum alpha value (enables better viewing).
 	 */
 	public void draw(BSimChemicalField field, Color c, double alphaGrad, double alphaMax) {
+		if(field instanceof BSimChemicalField2D) {
+			draw2D(field, c, alphaGrad, alphaMax);
+			return;
+		}
 		int[] boxes = field.getBoxes();
 		double[] boxSize = field.getBox();
 		double alpha = 0.0f;
@@ -406,6 +412,24 @@ public abstract class BSimP3DDrawer extends BSimDrawer {
 		}
 	}
 
+	/**	
+	 * 	Draw the leaves of a BSimLinearOctreeField in given colour.
+	 *	@param t Octree to be drawn.
+	 *	@param c Desired colour.
+	 *	@param alphaGrad The alpha-per-unit-concentration. 
+	 */
+	public  void draw(BSimLinearOctreeField t, Color c, float alphaGrad){
+		for (int i=0;  i<t.size(); i++){
+			Vector3d centre = t.getCentre(i);
+			float length = (float)t.leafLength(i);
+			p3d.pushMatrix();	
+			p3d.translate((float)centre.x, (float)centre.y, (float)centre.z);
+			p3d.fill(c.getRed(),c.getGreen(),c.getBlue(),alphaGrad*(float)t.getQuantity(i));
+			p3d.box(length,length,length);
+			p3d.popMatrix();
+		}
+	}
+
 	/**	
 	 * 	Draw a BSimOctreeField. Post order hierarchy used for drawing.
 	 *	@param t Octree to be drawn.
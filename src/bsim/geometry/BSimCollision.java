@@ -13,6 +13,11 @@ public class BSimCollision {
 		protected double t;
 		protected Vector3d pos;
 		public static boolean recursiveCollisions = false;
+		/**
+		 * Least t (as a fraction of the segment) of a hit in a recursive collision, so that the face
+		 * next to the one just hit is not hit again at the point where the segment starts.
+		 */
+		private static final double RECURSION_MIN_T = 1e-9;
 		
 		/** Constructor for an empty collision. */
 		public BSimCollision(){
@@ -64,8 +69,12 @@ public class BSimCollision {
 			Vector3d pa = new Vector3d();
 			ArrayList<Integer> potentialIntersections = new ArrayList<Integer>();			
 			
+			// Only faces whose bounding boxes the sphere overlaps can intersect it; they come in face order,
+			// so the forces are added in the same order as by checking every face
+			int[] candidates = theMesh.getBVH().overlapSphere(p.getPosition(), p.getRadius());
+			
 			// Plane collisions - less expensive than doing just triangles (~2.85x speedup)
-			for(int i = 0; i < theMesh.getFaces().size(); i++){
+			for(int i: candidates){
 				
 				BSimTriangle t = theMesh.getFaces().get(i);
 				
@@ -112,55 +121,64 @@ public class BSimCollision {
 		 * @param theMesh Mesh to check for intersection with.
 		 */
 		public static void collideAndReflect(Vector3d p1, Vector3d p2, BSimMesh theMesh){
+			collideAndReflect(p1, p2, theMesh, -1);
+		}
+		
+		/**
+		 * As collideAndReflect(p1, p2, theMesh), where p1 lies on the face lastFace (-1 for none), which has
+		 * just reflected the segment: that face, and any other hit at p1 itself, is not hit again.
+		 */
+		private static void collideAndReflect(Vector3d p1, Vector3d p2, BSimMesh theMesh, int lastFace){
 
 			BSimCollision iPos = new BSimCollision();
 			
-			// TODO: Needs to be more robust.
-			// At the moment this just uses the first collision that is detected (in tri list order, not spatially)
-			// This may not be robust enough for complex boundaries where a ray might intersect multiple triangles
-			// Solution: change the method so that all triangles are checked and the first intersection (spatially)
-			// is used i.e. the closest point of intersection to the ray origin.
-			// May be possible to achieve a speedup by testing against planes first.
-			// Judicious use of kdtree/octree will reduce the overhead of no longer having the early-out 
-			// which results from breaking when a triangle is hit
-			for(BSimTriangle t: theMesh.getFaces()){					
-				if(BSimMeshUtils.intersectVectorTriangle(p1, p2, t, iPos)){
+			// Use the first collision along the ray (the closest point of intersection to p1), found via the
+			// kd-tree of the mesh if it has one, else its bounding volume hierarchy
+			KdNode kdTree = theMesh.getKdTree();
+			int hit;
+			if(lastFace >= 0){
+				hit = (kdTree != null) ? kdTree.intersectSegment(p1, p2, lastFace, RECURSION_MIN_T, iPos)
+						: theMesh.getBVH().intersectSegment(p1, p2, lastFace, RECURSION_MIN_T, iPos);
+			}else if(kdTree != null){
+				hit = kdTree.intersectSegment(p1, p2, iPos);
+			}else{
+				hit = theMesh.getBVH().intersectSegment(p1, p2, iPos);
+			}
+			if(hit >= 0){
+				BSimTriangle t = theMesh.getFace(hit);
 
-					double scaleFactor;
-					
-					Vector3d reflected = new Vector3d();
-					Vector3d dir = new Vector3d();
-					
-					dir.sub(p2, p1);
-					
-					Vector3d normal = new Vector3d();
-					normal = t.getNormal();
-											
-					scaleFactor = -2*dir.dot(normal);
-					
-					double s2 = normal.dot(normal);
-					
-					scaleFactor = scaleFactor/s2;
-					
-					reflected.set(normal);
-					reflected.scale(scaleFactor);
-					reflected.add(dir);
-											
-					reflected.scale(1-iPos.getTVal());
+				double scaleFactor;
+				
+				Vector3d reflected = new Vector3d();
+				Vector3d dir = new Vector3d();
+				
+				dir.sub(p2, p1);
+				
+				Vector3d normal = new Vector3d();
+				normal = t.getNormal();
+										
+				scaleFactor = -2*dir.dot(normal);
+				
+				double s2 = normal.dot(normal);
+				
+				scaleFactor = scaleFactor/s2;
+				
+				reflected.set(normal);
+				reflected.scale(scaleFactor);
+				reflected.add(dir);
+										
+				reflected.scale(1-iPos.getTVal());
 
-					reflected.add(iPos.getLocation());
-					
-					p2.set(reflected);
-					
-					// Recursion to take into account case of grazing angle resulting
-					// in escape through adjacent triangle
-					// TODO: optimisation
-					// (although the recursion doesn't slow this down massively compared to increasing the mesh size)
-					if(recursiveCollisions){
-						collideAndReflect(iPos.getLocation(), p2, theMesh);
-					}
-					
-					break;
+				reflected.add(iPos.getLocation());
+				
+				p2.set(reflected);
+				
+				// Recursion to take into account case of grazing angle resulting
+				// in escape through adjacent triangle
+				// TODO: optimisation
+				// (although the recursion doesn't slow this down massively compared to increasing the mesh size)
+				if(recursiveCollisions){
+					collideAndReflect(iPos.getLocation(), p2, theMesh, hit);
 				}
 			}
 		}
@@ -173,13 +191,7 @@ public class BSimCollision {
 		 * @return Boolean whether crossing occurs.
 		 */
 		public static boolean collideAndCross(Vector3d p1, Vector3d p2, BSimMesh theMesh){
-			BSimCollision iPos = new BSimCollision();
-
-			for (BSimTriangle t: theMesh.getFaces()) {					
-				if (BSimMeshUtils.intersectVectorTriangle(p1, p2, t, iPos)) {
-					return true;
-				}
-			}
-			return false;
+			KdNode kdTree = theMesh.getKdTree();
+			return (kdTree != null) ? kdTree.crossesSegment(p1, p2) : theMesh.getBVH().crossesSegment(p1, p2);
 		}
 }
@@ -24,6 +24,16 @@ public abstract class BSimMesh {
 		
 	/** List of faces, each face stores the indices of the vertices which compose that face. */
 	protected ArrayList<BSimTriangle> faces;
+	
+	/** Bounding volume hierarchy over the faces, built on first use (see getBVH()). */
+	private BSimMeshBVH bvh;
+	/** Whether the vertices have moved since the hierarchy was last fitted to them. */
+	private boolean bvhStale;
+	
+	/** Kd-tree over the faces, if one has been built (see buildKdTree()). */
+	private KdNode kdTree;
+	/** Whether the vertices have moved since the kd-tree was built. */
+	private boolean kdTreeStale;
 			
 	
 	/**
@@ -179,6 +189,7 @@ public abstract class BSimMesh {
 			
 			(v.location).add(scaleVec);
 		}
+		verticesMoved();
 	}
 	
 	/**
@@ -239,6 +250,53 @@ public abstract class BSimMesh {
 		for(BSimVertex v: vertices){
 			(v.location).add(translation);
 		}
+		verticesMoved();
+	}
+	
+	/**
+	 * Get the bounding volume hierarchy over the faces of the mesh, used for collision queries.
+	 * It is built on first use, and again if faces have been added since; after translate() or scale()
+	 * its boxes are refitted to the moved vertices. Call verticesMoved() after moving vertices directly.
+	 */
+	public synchronized BSimMeshBVH getBVH(){
+		if(bvh == null || bvh.size() != faces.size()){
+			bvh = new BSimMeshBVH(this);
+		}else if(bvhStale){
+			bvh.refit();
+		}
+		bvhStale = false;
+		return bvh;
+	}
+	
+	/**
+	 * Build a kd-tree over the faces of the mesh, which BSimCollision then uses in place of the bounding
+	 * volume hierarchy for ray (segment) queries. It takes longer to build than the hierarchy, but answers
+	 * these queries faster on large meshes.
+	 */
+	public synchronized KdNode buildKdTree(){
+		kdTree = new KdNode(this);
+		kdTreeStale = false;
+		return kdTree;
+	}
+	
+	/**
+	 * Get the kd-tree over the faces of the mesh, or null if buildKdTree() has not been called. Once built,
+	 * it is built again on first use after faces are added or vertices moved (see verticesMoved()).
+	 */
+	public synchronized KdNode getKdTree(){
+		if(kdTree != null && (kdTreeStale || kdTree.size() != faces.size())){
+			buildKdTree();
+		}
+		return kdTree;
+	}
+	
+	/**
+	 * Mark the bounding volume hierarchy and kd-tree as out of date with the vertices, so that they are
+	 * refitted or rebuilt on next use. Called by translate() and scale().
+	 */
+	public synchronized void verticesMoved(){
+		bvhStale = true;
+		kdTreeStale = true;
 	}
 	
 	
@@ -0,0 +1,278 @@
+package bsim.geometry;
+
+import java.util.Arrays;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Bounding volume hierarchy over the faces of a mesh, for the collision queries of BSimCollision.
+ *
+ * The tree is built once, by splitting the faces at the median of their centres along the longest axis, and
+ * stored in flat arrays in depth-first order: the left child of an inner node is the next node, and the leaves
+ * hold ranges of a permutation of the face indices. When the vertices move (BSimMesh.translate() and scale())
+ * only the boxes are recomputed, by refit(); the tree itself is kept. Use BSimMesh.getBVH(), which builds and
+ * refits the tree as needed.
+ */
+public class BSimMeshBVH {
+
+	/** Most faces in a leaf. */
+	private static final int LEAF_SIZE = 4;
+	/** Deepest tree the traversal stacks allow for; median splits stay far below it. */
+	private static final int MAX_DEPTH = 64;
+	/** Relative padding of the boxes, so that round-off in the slab test does not miss a grazing hit. */
+	private static final double PAD = 1e-9;
+
+	/** The mesh. */
+	private final BSimMesh mesh;
+	/** Face indices, permuted so that each leaf holds a contiguous range. */
+	private final int[] order;
+	/** Per node: the box as min x, y, z then max x, y, z. */
+	private double[] bounds;
+	/** Per node: leaves, the first entry of order and the number of faces; inner nodes, the right child and 0. */
+	private int[] first, count;
+	/** Number of nodes. */
+	private int nodes;
+
+	/** Builds the tree over the current faces of the mesh. */
+	public BSimMeshBVH(BSimMesh mesh) {
+		this.mesh = mesh;
+		int n = mesh.getFaces().size();
+		order = new int[n];
+		for(int i=0;i<n;i++) order[i] = i;
+		int capacity = Math.max(1, 2*n);
+		bounds = new double[6*capacity];
+		first = new int[capacity];
+		count = new int[capacity];
+
+		double[] centre = new double[3*n];
+		for(int i=0;i<n;i++) {
+			Vector3d c = mesh.getTCentre(mesh.getFace(i));
+			centre[3*i] = c.x;
+			centre[3*i + 1] = c.y;
+			centre[3*i + 2] = c.z;
+		}
+		build(0, n, centre, 0);
+		refit();
+	}
+
+	/** Returns the number of faces the tree was built over. */
+	public int size() {
+		return order.length;
+	}
+
+	/* Makes a node for order[lo..hi), returning its index. */
+	private int build(int lo, int hi, double[] centre, int depth) {
+		int node = nodes++;
+		if(hi - lo <= LEAF_SIZE || depth >= MAX_DEPTH - 1) {
+			first[node] = lo;
+			count[node] = hi - lo;
+			return node;
+		}
+		double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for(int i=lo;i<hi;i++) {
+			for(int a=0;a<3;a++) {
+				double c = centre[3*order[i] + a];
+				if(c < min[a]) min[a] = c;
+				if(c > max[a]) max[a] = c;
+			}
+		}
+		int axis = 0;
+		for(int a=1;a<3;a++) if(max[a] - min[a] > max[axis] - min[axis]) axis = a;
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, centre, axis);
+		build(lo, mid, centre, depth + 1);
+		first[node] = build(mid, hi, centre, depth + 1);
+		count[node] = 0;
+		return node;
+	}
+
+	/* Partially sorts order[lo..hi] so that order[k] has the k-th centre along the axis (quickselect). */
+	private void select(int lo, int hi, int k, double[] centre, int axis) {
+		while(hi > lo) {
+			double pivot = centre[3*order[(lo + hi) >>> 1] + axis];
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(centre[3*order[i] + axis] < pivot) i++;
+				while(centre[3*order[j] + axis] > pivot) j--;
+				if(i <= j) {
+					int swap = order[i];
+					order[i++] = order[j];
+					order[j--] = swap;
+				}
+			}
+			if(k <= j) hi = j;
+			else if(k >= i) lo = i;
+			else return;
+		}
+	}
+
+	/** Recomputes the boxes from the current vertex positions, keeping the tree. */
+	public void refit() {
+		double size = 0;
+		for(BSimVertex v : mesh.getVertices()) {
+			Vector3d p = v.getLocation();
+			size = Math.max(size, Math.max(Math.abs(p.x), Math.max(Math.abs(p.y), Math.abs(p.z))));
+		}
+		double pad = PAD*(1 + size);
+		// Children come after their parents, so a backwards sweep sees both children before the parent
+		for(int node=nodes-1;node>=0;node--) {
+			int b = 6*node;
+			for(int a=0;a<3;a++) {
+				bounds[b + a] = Double.MAX_VALUE;
+				bounds[b + 3 + a] = -Double.MAX_VALUE;
+			}
+			if(count[node] > 0) {
+				for(int i=first[node];i<first[node] + count[node];i++) {
+					BSimTriangle t = mesh.getFace(order[i]);
+					for(int v=0;v<3;v++) grow(b, t.getVertCoords(v));
+				}
+				for(int a=0;a<3;a++) {
+					bounds[b + a] -= pad;
+					bounds[b + 3 + a] += pad;
+				}
+			} else {
+				int l = 6*(node + 1), r = 6*first[node];
+				for(int a=0;a<3;a++) {
+					bounds[b + a] = Math.min(bounds[l + a], bounds[r + a]);
+					bounds[b + 3 + a] = Math.max(bounds[l + 3 + a], bounds[r + 3 + a]);
+				}
+			}
+		}
+	}
+
+	private void grow(int b, Vector3d p) {
+		if(p.x < bounds[b]) bounds[b] = p.x;
+		if(p.y < bounds[b + 1]) bounds[b + 1] = p.y;
+		if(p.z < bounds[b + 2]) bounds[b + 2] = p.z;
+		if(p.x > bounds[b + 3]) bounds[b + 3] = p.x;
+		if(p.y > bounds[b + 4]) bounds[b + 4] = p.y;
+		if(p.z > bounds[b + 5]) bounds[b + 5] = p.z;
+	}
+
+	/**
+	 * Returns the indices, in ascending order, of the faces whose boxes overlap a sphere: a superset of the
+	 * faces that the sphere intersects.
+	 */
+	public int[] overlapSphere(Vector3d centre, double radius) {
+		int[] found = new int[16];
+		int n = 0;
+		if(nodes == 0 || order.length == 0) return new int[0];
+		int[] stack = new int[MAX_DEPTH];
+		int top = 0;
+		stack[top++] = 0;
+		double r2 = radius*radius;
+		while(top > 0) {
+			int node = stack[--top];
+			if(boxDistanceSquared(6*node, centre) > r2) continue;
+			if(count[node] > 0) {
+				for(int i=first[node];i<first[node] + count[node];i++) {
+					if(n == found.length) found = Arrays.copyOf(found, 2*n);
+					found[n++] = order[i];
+				}
+			} else {
+				stack[top++] = first[node];
+				stack[top++] = node + 1;
+			}
+		}
+		found = Arrays.copyOf(found, n);
+		Arrays.sort(found);
+		return found;
+	}
+
+	private double boxDistanceSquared(int b, Vector3d p) {
+		double d = 0, e;
+		e = Math.max(bounds[b] - p.x, Math.max(0, p.x - bounds[b + 3])); d += e*e;
+		e = Math.max(bounds[b + 1] - p.y, Math.max(0, p.y - bounds[b + 4])); d += e*e;
+		e = Math.max(bounds[b + 2] - p.z, Math.max(0, p.z - bounds[b + 5])); d += e*e;
+		return d;
+	}
+
+	/**
+	 * Finds the face that the segment p1-p2 hits nearest to p1 (of equally near faces, the one with the
+	 * lowest index), as tested by BSimMeshUtils.intersectVectorTriangle().
+	 * @param hit Set to the collision, if there is one.
+	 * @return The index of the face, or -1 if the segment hits none.
+	 */
+	public int intersectSegment(Vector3d p1, Vector3d p2, BSimCollision hit) {
+		return traverse(p1, p2, -1, 0, hit, false);
+	}
+
+	/**
+	 * As intersectSegment(p1, p2, hit), but ignoring the face skipFace and any hit nearer to p1 than tMin (a
+	 * fraction of the segment), e.g. to continue a segment from a point on a face it has just hit.
+	 */
+	public int intersectSegment(Vector3d p1, Vector3d p2, int skipFace, double tMin, BSimCollision hit) {
+		return traverse(p1, p2, skipFace, tMin, hit, false);
+	}
+
+	/** Returns whether the segment p1-p2 hits any face. */
+	public boolean crossesSegment(Vector3d p1, Vector3d p2) {
+		return traverse(p1, p2, -1, 0, new BSimCollision(), true) >= 0;
+	}
+
+	private int traverse(Vector3d p1, Vector3d p2, int skipFace, double tMin, BSimCollision hit, boolean any) {
+		if(order.length == 0) return -1;
+		double[] origin = {p1.x, p1.y, p1.z};
+		double[] inverse = {1/(p2.x - p1.x), 1/(p2.y - p1.y), 1/(p2.z - p1.z)};
+		BSimCollision candidate = new BSimCollision();
+		int best = -1;
+		double bestT = 1;
+		int[] stack = new int[MAX_DEPTH];
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int node = stack[--top];
+			if(entry(6*node, origin, inverse, bestT) > bestT) continue;
+			if(count[node] > 0) {
+				for(int i=first[node];i<first[node] + count[node];i++) {
+					int face = order[i];
+					if(face == skipFace) continue;
+					if(!BSimMeshUtils.intersectVectorTriangle(p1, p2, mesh.getFace(face), candidate)) continue;
+					double t = candidate.getTVal();
+					if(t < tMin) continue;
+					if(best < 0 || t < bestT || (t == bestT && face < best)) {
+						best = face;
+						bestT = t;
+						hit.set(candidate);
+						if(any) return best;
+					}
+				}
+			} else {
+				// Visit the nearer child first, so that its hits can prune the other
+				int l = node + 1, r = first[node];
+				double tl = entry(6*l, origin, inverse, bestT), tr = entry(6*r, origin, inverse, bestT);
+				if(tl <= tr) {
+					stack[top++] = r;
+					stack[top++] = l;
+				} else {
+					stack[top++] = l;
+					stack[top++] = r;
+				}
+			}
+		}
+		return best;
+	}
+
+	/* Returns where along the segment (0-1) it enters box b, or infinity if it misses it before tMax. */
+	private double entry(int b, double[] origin, double[] inverse, double tMax) {
+		double tMin = 0;
+		for(int a=0;a<3;a++) {
+			double lo = bounds[b + a], hi = bounds[b + 3 + a];
+			if(Double.isInfinite(inverse[a])) {
+				if(origin[a] < lo || origin[a] > hi) return Double.POSITIVE_INFINITY;
+				continue;
+			}
+			double t0 = (lo - origin[a])*inverse[a], t1 = (hi - origin[a])*inverse[a];
+			if(t0 > t1) {
+				double swap = t0;
+				t0 = t1;
+				t1 = swap;
+			}
+			if(t0 > tMin) tMin = t0;
+			if(t1 < tMax) tMax = t1;
+			if(tMin > tMax) return Double.POSITIVE_INFINITY;
+		}
+		return tMin;
+	}
+}
@@ -178,8 +178,7 @@ public class BSimMeshUtils {
 		double w = -ab.dot(e) * oodenom;
 		if (w < 0.0 || v + w > 1.0) return false;
 		
-		// Segment/ray intersects triangle.
-		t *= oodenom;
+		// Segment/ray intersects triangle. (t has already been divided by denom above.)
 		//double u = 1.0f - v - w;
 		
 		coll.set(t, qp, startPos);
@@ -380,8 +379,9 @@ public class BSimMeshUtils {
 		
 		// Test separating axis corresponding to triangle face normal
 		
+		// (in world coordinates, as intersectPlaneAAB() takes the box centre; v0 has been moved)
 		Vector3d normal = t.getNormal();
-		double d = normal.dot(v0);
+		double d = normal.dot(t.getVertCoords(0));
 		
 		return intersectPlaneAAB(normal, d, boxCentre, boxDim);
 	}
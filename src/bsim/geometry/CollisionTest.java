@@ -0,0 +1,57 @@
+package bsim.geometry;
+
+import java.util.Random;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Checks BSimCollision.collideAndReflect() with recursive collisions, through both the BVH and the kd-tree:
+ * moves that start just inside a sphere mesh and head out through its wall must be reflected back inside,
+ * without the recursion hitting the face it starts on again.
+ *
+ * Exits with a non-zero status if a check fails.
+ */
+public class CollisionTest {
+
+	public static void main(String[] args) {
+		Vector3d centre = new Vector3d(0, 0, 0);
+		BSimSphereMesh mesh = new BSimSphereMesh(centre, 30, 3);
+		int failures = reflect("BVH", mesh, centre);
+		mesh.buildKdTree();
+		failures += reflect("kd-tree", mesh, centre);
+		if(failures > 0) System.exit(1);
+	}
+
+	/* Reflects random outward moves near the wall, returning the number that end outside or fail. */
+	private static int reflect(String name, BSimMesh mesh, Vector3d centre) {
+		boolean recursive = BSimCollision.recursiveCollisions;
+		BSimCollision.setRecursiveCollisions(true);
+		Random random = new Random(5);
+		int moves = 0, outside = 0, errors = 0;
+		while(moves < 500) {
+			Vector3d out = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+			out.normalize();
+			Vector3d p1 = new Vector3d(out);
+			p1.scale(27 + 2*random.nextDouble());
+			p1.add(centre);
+			// Start inside the mesh, and move outwards
+			if(BSimCollision.collideAndCross(centre, p1, mesh)) continue;
+			Vector3d step = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+			if(step.dot(out) < 0) step.scale(-1);
+			step.normalize();
+			step.scale(2 + 4*random.nextDouble());
+			Vector3d p2 = new Vector3d(p1);
+			p2.add(step);
+			moves++;
+			try {
+				BSimCollision.collideAndReflect(p1, p2, mesh);
+				if(BSimCollision.collideAndCross(centre, p2, mesh)) outside++;
+			} catch(StackOverflowError e) {
+				errors++;
+			}
+		}
+		BSimCollision.setRecursiveCollisions(recursive);
+		System.out.println(name + ": " + moves + " moves, " + outside + " ended outside, " + errors + " overflowed");
+		return outside + errors;
+	}
+}
@@ -1,58 +1,116 @@
 package bsim.geometry;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 import javax.vecmath.Vector3d;
 
 /**
  * See, for example, http://en.wikipedia.org/wiki/Kd-tree
- * 
- * Effectively an axis-aligned BSP tree which alternates the splitting plane axis at each level of branching.
- * 
- * Median point finding via quick-select algorithm.
- * 
+ *
+ * A kd-tree over the triangles of a mesh, for ray (segment) queries: an axis-aligned BSP tree in which each
+ * leaf lists the triangles that overlap it. The splitting planes are chosen by the surface area heuristic
+ * (SAH): of the planes at the edges of the triangles' bounding boxes, the one that minimises the expected
+ * cost of a ray query, or none if a leaf is cheaper.
+ *
+ * The tree is kept in flat arrays, in depth-first order: the child below the splitting plane of an inner node
+ * is the next node, and the leaves hold ranges of an array of triangle indices. Queries walk it with a stack
+ * rather than by recursion. Unlike the boxes of a BSimMeshBVH, the splitting planes cannot follow the vertices
+ * when they move, so the tree must be built again; see BSimMesh.buildKdTree().
  */
 public class KdNode {
-	
-	/** Index of the vertex on which the splitting plane is located */
-	public int location;
-	/** Axis normal to the splitting plane (0 = x, 1 = y, 2 = z) */
-	public int nodeAxis;
-	
-	/** Left child: coordinate of interest < splitting plane */
-	public KdNode leftChild;
-	/** Right child: coordinate of interest > splitting plane */
-	public KdNode rightChild;
-	
-	/** Triangles that are classified as being to the left of the node. */
-	public ArrayList<Integer> leftTris;
-	
-	/** Triangles that are classified as being to the right of this node. */
-	public ArrayList<Integer> rightTris;
-	
-	public BSimMesh parentMesh;
-	
-	// Not currently used - TODO: will be implemented in the median choosing 
-	// method again once bugs are squashed
-//	private static Random rng = new Random();	
-	
-	/**
-	 * Default constructor.
-	 */
-	public KdNode(){
+
+	/** Cost of stepping through an inner node, and of testing a triangle, for the SAH. */
+	private static final double TRAVERSAL_COST = 1.0;
+	private static final double INTERSECTION_COST = 1.5;
+	/** Relative padding of the root box, so that round-off in clipping the segment does not miss a hit. */
+	private static final double PAD = 1e-9;
+	/** Marks a leaf in axis[]. */
+	private static final int LEAF = 3;
+
+	/** The mesh. */
+	private final BSimMesh mesh;
+	/** Number of faces the tree was built over. */
+	private final int faces;
+	/** Deepest the tree may grow. */
+	private final int maxDepth;
+	/** Box around the whole mesh, as min x, y, z then max x, y, z. */
+	private final double[] bounds = new double[6];
+	/** Per face: its bounding box, as for bounds. */
+	private final double[] faceBounds;
+
+	/** Per node: the axis normal to its splitting plane (0 = x, 1 = y, 2 = z), or LEAF. */
+	private int[] axis;
+	/** Per inner node: the coordinate of its splitting plane. */
+	private double[] split;
+	/** Per node: inner nodes, the child above the plane; leaves, the first entry of prims. */
+	private int[] child;
+	/** Per leaf: the number of faces. */
+	private int[] primCount;
+	/** Face indices of the leaves. */
+	private int[] prims;
+	private int nodes, primsUsed;
+
+	/** Builds the tree over the current faces and vertex positions of the mesh. */
+	public KdNode(BSimMesh mesh){
+		this.mesh = mesh;
+		faces = mesh.getFaces().size();
+		maxDepth = (int)Math.round(8 + 1.3*Math.log(Math.max(1, faces))/Math.log(2));
+
+		faceBounds = new double[6*faces];
+		Arrays.fill(bounds, 0, 3, Double.MAX_VALUE);
+		Arrays.fill(bounds, 3, 6, -Double.MAX_VALUE);
+		for(int i = 0; i < faces; i++){
+			BSimTriangle t = mesh.getFace(i);
+			for(int a = 0; a < 3; a++){
+				faceBounds[6*i + a] = Double.MAX_VALUE;
+				faceBounds[6*i + 3 + a] = -Double.MAX_VALUE;
+			}
+			for(int v = 0; v < 3; v++){
+				Vector3d p = t.getVertCoords(v);
+				for(int a = 0; a < 3; a++){
+					double c = vecGetCoord(p, a);
+					faceBounds[6*i + a] = Math.min(faceBounds[6*i + a], c);
+					faceBounds[6*i + 3 + a] = Math.max(faceBounds[6*i + 3 + a], c);
+				}
+			}
+			for(int a = 0; a < 3; a++){
+				bounds[a] = Math.min(bounds[a], faceBounds[6*i + a]);
+				bounds[3 + a] = Math.max(bounds[3 + a], faceBounds[6*i + 3 + a]);
+			}
+		}
+		if(faces > 0){
+			double size = 0;
+			for(int a = 0; a < 6; a++) size = Math.max(size, Math.abs(bounds[a]));
+			for(int a = 0; a < 3; a++){
+				bounds[a] -= PAD*(1 + size);
+				bounds[3 + a] += PAD*(1 + size);
+			}
+		}
+
+		int capacity = Math.max(16, 2*faces);
+		axis = new int[capacity];
+		split = new double[capacity];
+		child = new int[capacity];
+		primCount = new int[capacity];
+		prims = new int[capacity];
+
+		int[] all = new int[faces];
+		for(int i = 0; i < faces; i++) all[i] = i;
+		build(all, bounds.clone(), 0);
 	}
-	
-	public boolean hasLeftChild(){
-		return this.leftChild != null;
+
+	/** Returns the number of faces the tree was built over. */
+	public int size(){
+		return faces;
 	}
-	
-	public boolean hasRightChild(){
-		return this.rightChild != null;
+
+	/** Returns the number of nodes in the tree. */
+	public int getNodeCount(){
+		return nodes;
 	}
-	
-	/**
-	 * ...GHH
-	 */
+
+	/** Returns the coordinate i (0 = x, 1 = y, 2 = z) of a vector. */
 	public static double vecGetCoord(Vector3d v, int i){
 		if(i == 0){
 			return v.x;
@@ -64,437 +122,247 @@ public class KdNode {
 			return Double.NaN;
 		}
 	}
-		
-	/**
-	 * Intersect a direction vector segment with KdNode (or hierarchy)
-	 * @param p1
-	 */
-	public static ArrayList<ArrayList<Integer>> intersectVectorKdNode(Vector3d p1, Vector3d p2, KdNode theKdNode){
-		
-		ArrayList<ArrayList<Integer>> masterList = new ArrayList<ArrayList<Integer>>();
-		
-		// Compare the two points 
-		Vector3d location = new Vector3d(theKdNode.parentMesh.getVertCoords(theKdNode.location));
-
-		double nodeAxial = vecGetCoord(location, theKdNode.nodeAxis);
-		double p1Axial = vecGetCoord(p1, theKdNode.nodeAxis);
-		double p2Axial = vecGetCoord(p2, theKdNode.nodeAxis);
 
-		boolean p1OnTheRight = p1Axial > nodeAxial;
+	/* Makes a node for the faces tris within box, returning its index. */
+	private int build(int[] tris, double[] box, int depth){
+		int node = nodes++;
+		if(node == axis.length){
+			int capacity = 2*node;
+			axis = Arrays.copyOf(axis, capacity);
+			split = Arrays.copyOf(split, capacity);
+			child = Arrays.copyOf(child, capacity);
+			primCount = Arrays.copyOf(primCount, capacity);
+		}
+		int n = tris.length;
 
-		// If the points are both on the same side
-		if(p1OnTheRight == (p2Axial > nodeAxial)){
-			// If they're on the right, check the right region
-			if(p1OnTheRight){
-				// Recurse right
-				if(theKdNode.hasRightChild()){
-					masterList.addAll(intersectVectorKdNode(p1, p2, theKdNode.rightChild));
-				} else {
-					masterList.add(theKdNode.rightTris);
+		// Find the cheapest plane, if any is cheaper than a leaf
+		double bestCost = INTERSECTION_COST*n;
+		int bestAxis = -1;
+		double bestSplit = 0;
+		if(n > 1 && depth < maxDepth){
+			double[] extent = {box[3] - box[0], box[4] - box[1], box[5] - box[2]};
+			double area = extent[0]*extent[1] + extent[1]*extent[2] + extent[2]*extent[0];
+			double[] lo = new double[n], hi = new double[n], planar = new double[n];
+			for(int a = 0; a < 3; a++){
+				if(!(area > 0) || !(extent[a] > 0)) continue;
+				int planarCount = 0;
+				for(int i = 0; i < n; i++){
+					lo[i] = Math.max(faceBounds[6*tris[i] + a], box[a]);
+					hi[i] = Math.min(faceBounds[6*tris[i] + 3 + a], box[3 + a]);
+					if(lo[i] == hi[i]) planar[planarCount++] = lo[i];
 				}
-			}else{ 
-				// Recurse Left
-				if(theKdNode.hasLeftChild()){
-					masterList.addAll(intersectVectorKdNode(p1, p2, theKdNode.leftChild));
-				} else {
-					masterList.add(theKdNode.leftTris);
+				Arrays.sort(lo);
+				Arrays.sort(hi);
+				Arrays.sort(planar, 0, planarCount);
+				double e1 = extent[(a + 1)%3], e2 = extent[(a + 2)%3];
+				for(int pass = 0; pass < 2; pass++){
+					double[] candidates = (pass == 0) ? lo : hi;
+					for(int i = 0; i < n; i++){
+						double s = candidates[i];
+						if(i > 0 && s == candidates[i - 1]) continue;
+						if(s <= box[a] || s >= box[3 + a]) continue;
+						// Faces lying in the plane go to both sides, as in the partition below
+						int inPlane = upperBound(planar, planarCount, s) - lowerBound(planar, planarCount, s);
+						int below = lowerBound(lo, n, s) + inPlane;
+						int above = n - upperBound(hi, n, s) + inPlane;
+						double areaBelow = e1*e2 + (s - box[a])*(e1 + e2);
+						double areaAbove = e1*e2 + (box[3 + a] - s)*(e1 + e2);
+						double cost = TRAVERSAL_COST + INTERSECTION_COST*(areaBelow*below + areaAbove*above)/area;
+						if(cost < bestCost){
+							bestCost = cost;
+							bestAxis = a;
+							bestSplit = s;
+						}
+					}
 				}
 			}
-		}else{
-			// If they cross the cutting plane
-			Vector3d direction = new Vector3d(p2);
-			direction.sub(p1);
-
-			double[] n = {0, 0, 0};
-			n[theKdNode.nodeAxis] = 1;
-
-			Vector3d planeNormal = new Vector3d(n);
-			// plane d value: DOT(normal, location)
-			double d = planeNormal.dot(new Vector3d(location));
-
-			// point where vector intersects cutting plane
-			BSimCollision col = BSimMeshUtils.intersectVectorPlane(p1, direction, planeNormal, d);
-
-			// The vector crosses. This means we must check both sides.
-			// now can have 2 vectors: p1 -> col.pos and col.pos -> p2
+		}
 
-			// Which side to check?
-			// (Check and return in order of closest to most distant)
-			if(p1OnTheRight){
-				// Recurse right
-				if(theKdNode.hasRightChild()){
-					masterList.addAll(intersectVectorKdNode(p1, col.getLocation(), theKdNode.rightChild));
-				} else {
-					masterList.add(theKdNode.rightTris);
-				}
-				// Recurse Left
-				if(theKdNode.hasLeftChild()){
-					masterList.addAll(intersectVectorKdNode(col.getLocation(), p2, theKdNode.leftChild));
-				} else {
-					masterList.add(theKdNode.leftTris);
-				}
-			}else{
-				// Recurse Left
-				if(theKdNode.hasLeftChild()){
-					masterList.addAll(intersectVectorKdNode(p1, col.getLocation(), theKdNode.leftChild));
-				} else {
-					masterList.add(theKdNode.leftTris);
-				}
-				// Recurse right
-				if(theKdNode.hasRightChild()){
-					masterList.addAll(intersectVectorKdNode(col.getLocation(), p2, theKdNode.rightChild));
-				} else {
-					masterList.add(theKdNode.rightTris);
-				}
-			}
+		if(bestAxis < 0){
+			axis[node] = LEAF;
+			child[node] = primsUsed;
+			primCount[node] = n;
+			if(primsUsed + n > prims.length) prims = Arrays.copyOf(prims, Math.max(2*prims.length, primsUsed + n));
+			System.arraycopy(tris, 0, prims, primsUsed, n);
+			primsUsed += n;
+			return node;
 		}
-		
-		return masterList;
-	}
-		
-	
-	public static void main(String[] args){
-		//test();
-		
-		Vector3d spCentre = new Vector3d(0,0,0);
-		double spRadius = 10;
-		
-		BSimSphereMesh theMesh = new BSimSphereMesh(spCentre, spRadius, 0);
-		
-		KdNode testKdTree = new KdNode();
-		
-//		TestMesh theMesh = testKdTree.new TestMesh();
-		theMesh.printStats();
-		
-		testKdTree = testKdTree.kdTreeFromMesh(theMesh);
-		
-//		System.out.println("First level median " + theMesh.getVertices().get(testKdTree.location).location);
-//		
-//		System.out.println("Second level left median " + theMesh.getVertices().get(testKdTree.leftChild.location).location);
-//		System.out.println("Second level right median " + theMesh.getVertices().get(testKdTree.rightChild.location).location);
-//
-//		System.out.println("Third level left left median " + theMesh.getVertices().get(testKdTree.leftChild.leftChild.location).location);
-//		System.out.println("Third level left right median " + theMesh.getVertices().get(testKdTree.leftChild.rightChild.location).location);
-//		System.out.println("Third level right left median " + theMesh.getVertices().get(testKdTree.rightChild.leftChild.location).location);
-//		System.out.println("Third level right right median " + theMesh.getVertices().get(testKdTree.rightChild.rightChild.location).location);
 
-	}
-	
-	
-	/*
-	 */
-	public void findMedian(Indexed3d[] dList, int axis, int firstIndex, int lastIndex, int medianPos){
-		if(lastIndex > firstIndex){
-			int pivotIndex = 0;//rng.nextInt(lastIndex - firstIndex) + firstIndex;
-			
-			int pivotNewIndex = partition(dList, axis, firstIndex, lastIndex, pivotIndex);
-			
-			if(pivotNewIndex > medianPos){
-				findMedian(dList, axis, firstIndex, pivotNewIndex - 1, medianPos);
-			}
-			if(pivotNewIndex < medianPos){
-				findMedian(dList, axis, pivotNewIndex + 1, lastIndex, medianPos);
-			}
+		int[] below = new int[n], above = new int[n];
+		int nBelow = 0, nAbove = 0;
+		for(int t: tris){
+			double lo = Math.max(faceBounds[6*t + bestAxis], box[bestAxis]);
+			double hi = Math.min(faceBounds[6*t + 3 + bestAxis], box[3 + bestAxis]);
+			if(lo < bestSplit || hi <= bestSplit) below[nBelow++] = t;
+			if(hi > bestSplit || lo >= bestSplit) above[nAbove++] = t;
 		}
+		double[] belowBox = box.clone(), aboveBox = box.clone();
+		belowBox[3 + bestAxis] = bestSplit;
+		aboveBox[bestAxis] = bestSplit;
+
+		axis[node] = bestAxis;
+		split[node] = bestSplit;
+		build(Arrays.copyOf(below, nBelow), belowBox, depth + 1);
+		// (Not child[node] = build(...): the build may replace the array)
+		int aboveNode = build(Arrays.copyOf(above, nAbove), aboveBox, depth + 1);
+		child[node] = aboveNode;
+		return node;
 	}
-	
-	/*
-	 */
-	public int partition(Indexed3d[] dList, int axis, int firstIndex, int lastIndex, int pivotIndex){
-		
-		Indexed3d pVal = new Indexed3d(dList[pivotIndex]);
-		
-		dList[pivotIndex].set(dList[lastIndex]);
-		dList[lastIndex].set(pVal);
-		
-	    int storeIndex = firstIndex;
-	    Indexed3d storeVal;
-		
-		for(int i = firstIndex; i < lastIndex; i++){
-			// Sort on current axis
-			if(dList[i].val[axis] < pVal.val[axis]){
-				storeVal = new Indexed3d(dList[storeIndex]);
-				dList[storeIndex].set(dList[i]);
-				dList[i].set(storeVal);
-				storeIndex = storeIndex + 1;
-			}
+
+	/* Number of the first n entries of sorted a that are < x. */
+	private static int lowerBound(double[] a, int n, double x){
+		int lo = 0, hi = n;
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if(a[mid] < x) lo = mid + 1; else hi = mid;
 		}
-		
-		storeVal = new Indexed3d(dList[storeIndex]);
-		dList[storeIndex].set(dList[lastIndex]);
-		dList[lastIndex].set(storeVal);
-		
-		return storeIndex;
+		return lo;
 	}
-	
-	public KdNode kdTreeMeshTest(){
-		KdNode kn = new KdNode();
-		
-		TestMesh tm = new TestMesh();
-		tm.scale(10);
-		tm.translateAbsolute(new Vector3d(50,50,50));
-				
-		kn = kdTreeFromMesh(tm);
-		
-		return kn;
-	}
-	
-	/*
-	 */
-	public KdNode kdTreeFromMesh(BSimMesh theMesh){
-		int listSize = theMesh.getVertices().size();
-		
-		// XXX: If this needs to be an ArrayList (or etc) can use Collection.swap() to swap elements
-		Indexed3d[] coordList = new Indexed3d[listSize];
-		
-		double[] t = new double[3];
-		
-		for(int i = 0; i < listSize; i++){
-			theMesh.getVertices().get(i).getLocation().get(t);
-			coordList[i] = new Indexed3d(t, i);
-		}
-		
-//		for(int i = 0; i < coordList.length; i++){
-//			System.out.print(coordList[i].val[0] + " ");
-//		}
-//		System.out.println();
-//		for(int i = 0; i < coordList.length; i++){
-//			System.out.print(coordList[i].val[1] + " ");
-//		}
-//		System.out.println();
-//		for(int i = 0; i < coordList.length; i++){
-//			System.out.print(coordList[i].val[2] + " ");
-//		}
-//		System.out.println();
-		
-		KdNode theKdTree = makeTree(theMesh, coordList, 0);
-		theKdTree.parentMesh = theMesh;
-		
-		// Parent mesh has been assigned, so assign triangles to each node.
-		// 	(This could be done during the construction stage by, for example,
-		//	testing the triangles assigned to each vertex, however due to the need
-		//  to split triangles (at least virtually) etc. this approach would 
-		//  appear to result in a lot of repetition, hence we assign triangles here.
-		assignTrianglesFromParentMesh(theKdTree);
 
-		return theKdTree;
+	/* Number of the first n entries of sorted a that are <= x. */
+	private static int upperBound(double[] a, int n, double x){
+		int lo = 0, hi = n;
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if(a[mid] <= x) lo = mid + 1; else hi = mid;
+		}
+		return lo;
 	}
-	
 
 	/**
-	 * Assigns triangles from the parent mesh of the k-d tree to each (leaf) node.
+	 * Finds the face that the segment p1-p2 hits nearest to p1 (of equally near faces, the one with the
+	 * lowest index), as tested by BSimMeshUtils.intersectVectorTriangle().
+	 * @param hit Set to the collision, if there is one.
+	 * @return The index of the face, or -1 if the segment hits none.
 	 */
-	public void assignTrianglesFromParentMesh(KdNode kn){	
-		// For each triangle in the mesh, add that triangle to the leaves which define the area which it occupies
-		for(int i = 0; i < kn.parentMesh.getFaces().size(); i++){
-			BSimTriangle t = kn.parentMesh.getFaces().get(i);
-			
-			for(int j = 0; j < 3; j++){
-				// for each edge of the triangle
-				Vector3d p0 = t.getVertCoords(j);
-				Vector3d p1 = t.getVertCoords((j+1)%3);
-				
-				// Find the triangle lists belonging to nodes which contain this edge
-				ArrayList<ArrayList<Integer>> triLists = intersectVectorKdNode(p0, p1, kn);
-				
-				// If a list doesn't already contain this triangle then add it.
-				for(ArrayList<Integer> al: triLists){
-					if(!al.contains(i)){
-						al.add(i);
-					}
-				}
-				
-			}
-		}
+	public int intersectSegment(Vector3d p1, Vector3d p2, BSimCollision hit){
+		return traverse(p1, p2, -1, 0, hit, false);
 	}
 
-	
-	
-	/*
+	/**
+	 * As intersectSegment(p1, p2, hit), but ignoring the face skipFace and any hit nearer to p1 than tHit (a
+	 * fraction of the segment), e.g. to continue a segment from a point on a face it has just hit.
 	 */
-	public KdNode makeTree(BSimMesh theMesh, Indexed3d[] points, int depth){
-		if(points == null || points.length == 0){
-			return null;
-		} else {
-			int theSize = points.length;
-			int medianPos = (new Double(Math.floor(theSize/2))).intValue();
-			int axis = depth % 3;
-			
-			// Quickselect to get the median and partially sorted points list
-			findMedian(points, axis, 0, theSize - 1, medianPos);
-			
-			KdNode node = new KdNode();
-
-			node.location = points[medianPos].originalIndex;
-			node.nodeAxis = axis;
-			node.parentMesh = theMesh;
-			
-			node.leftChild = makeTree(theMesh, getSubSet(points, 0, medianPos - 1),depth + 1);
-			node.rightChild = makeTree(theMesh, getSubSet(points, medianPos + 1, theSize - 1), depth + 1);
-			
-			if(!node.hasLeftChild()){
-				node.leftTris = new ArrayList<Integer>(1);
-			}
-			if(!node.hasRightChild()){
-				node.rightTris = new ArrayList<Integer>(1);
-			}
-			
-			return node;
-		}
+	public int intersectSegment(Vector3d p1, Vector3d p2, int skipFace, double tHit, BSimCollision hit){
+		return traverse(p1, p2, skipFace, tHit, hit, false);
 	}
-		
-	
-	public Indexed3d[] getSubSet(Indexed3d[] fullSet, int start, int end)
-	{		
-		if(fullSet.length <= 1){
-			return null;
-		}else{
-			Indexed3d[] subSet = new Indexed3d[end - start + 1];
-			System.arraycopy(fullSet, start, subSet, 0, subSet.length);
-			
-//			for(int i = 0; i < subSet.length;i++){
-//				System.out.print(subSet[i].originalIndex + " ");
-//			}
-//			System.out.println();
-			
-			
-			return subSet;
-		}
+
+	/** Returns whether the segment p1-p2 hits any face. */
+	public boolean crossesSegment(Vector3d p1, Vector3d p2){
+		return traverse(p1, p2, -1, 0, new BSimCollision(), true) >= 0;
 	}
-	
-	@SuppressWarnings("unused")
-	private static void test(){
-		KdNode tree = new KdNode();
-		
-		double[] testlistX = {9,8,7,3,1,2,5,4,6};		
-		double[] testlistY = {1,3,5,7,9,11,13,15,17};		
-		double[] testlistZ = {23,21,19,17,15,13,11,9,7};	
-		
-		int testAxis = 2;
-		
-		int theSize = testlistX.length;
-		int mindex = (new Double(Math.floor((theSize - 1)/2))).intValue();
 
-		Indexed3d[] coordList = new Indexed3d[theSize];
-		
-		for(int i = 0; i < theSize; i++){
-			double[] tlist = {testlistX[i],testlistY[i],testlistZ[i]};
-			coordList[i] = tree.new Indexed3d(tlist, i);
-		}
+	private int traverse(Vector3d p1, Vector3d p2, int skipFace, double tHit, BSimCollision hit, boolean any){
+		if(faces == 0) return -1;
+		double[] origin = {p1.x, p1.y, p1.z};
+		double[] dir = {p2.x - p1.x, p2.y - p1.y, p2.z - p1.z};
 
-		////////////////////////////////////////
-		System.out.println();
-		for(int i = 0; i < theSize; i++){
-			System.out.print(coordList[i].originalIndex + " ");
-		}
-		
-		System.out.println();
-		for(int i = 0; i < theSize; i++){
-			System.out.print(coordList[i].val[0] + " ");
-		}
-		System.out.println();
-		for(int i = 0; i < theSize; i++){
-			System.out.print(coordList[i].val[1] + " ");
-		}
-		System.out.println();
-		for(int i = 0; i < theSize; i++){
-			System.out.print(coordList[i].val[2] + " ");
-		}
-		System.out.println();
-		////////////////////////////////////////
-		
-		tree.findMedian(coordList, testAxis, 0, theSize - 1, mindex);
-		
-		////////////////////////////////////////
-		System.out.println();
-		for(int i = 0; i < theSize; i++){
-			System.out.print(coordList[i].originalIndex + " ");
-		}
-		
-		System.out.println();
-		for(int i = 0; i < theSize; i++){
-			System.out.print(coordList[i].val[0] + " ");
-		}
-		System.out.println();
-		for(int i = 0; i < theSize; i++){
-			System.out.print(coordList[i].val[1] + " ");
-		}
-		System.out.println();
-		for(int i = 0; i < theSize; i++){
-			System.out.print(coordList[i].val[2] + " ");
+		// Clip the segment to the root box
+		double tMin = 0, tMax = 1;
+		for(int a = 0; a < 3; a++){
+			if(dir[a] == 0){
+				if(origin[a] < bounds[a] || origin[a] > bounds[3 + a]) return -1;
+				continue;
+			}
+			double t0 = (bounds[a] - origin[a])/dir[a], t1 = (bounds[3 + a] - origin[a])/dir[a];
+			tMin = Math.max(tMin, Math.min(t0, t1));
+			tMax = Math.min(tMax, Math.max(t0, t1));
+			if(tMin > tMax) return -1;
 		}
-		System.out.println();
-		////////////////////////////////////////
-
-		System.out.println("Median is " + coordList[mindex].val[testAxis] + " at position " + coordList[mindex].originalIndex);
-	}
-	
-	class TestMesh extends BSimMesh{
 
-		public TestMesh() {
-			super();
-			createMesh();
+		BSimCollision candidate = new BSimCollision();
+		int best = -1;
+		double bestT = 1;
+		int[] stackNode = new int[maxDepth + 2];
+		double[] stackMin = new double[maxDepth + 2], stackMax = new double[maxDepth + 2];
+		int top = 0;
+		int node = 0;
+		while(true){
+			if(tMin <= bestT){
+				while(axis[node] != LEAF){
+					int a = axis[node];
+					double s = split[node];
+					int below = node + 1, above = child[node];
+					if(dir[a] == 0){
+						if(origin[a] < s){
+							node = below;
+						}else if(origin[a] > s){
+							node = above;
+						}else{
+							// Running along the plane: the faces on either side may touch it
+							stackNode[top] = above; stackMin[top] = tMin; stackMax[top] = tMax; top++;
+							node = below;
+						}
+						continue;
+					}
+					double tSplit = (s - origin[a])/dir[a];
+					// The side the segment starts on; if it starts on the plane, the side it leaves
+					boolean belowFirst = origin[a] < s || (origin[a] == s && dir[a] > 0);
+					int near = belowFirst ? below : above, far = belowFirst ? above : below;
+					// (tSplit < 0: moving away from the plane)
+					if(tSplit > tMax || tSplit < 0){
+						node = near;
+					}else if(tSplit < tMin){
+						node = far;
+					}else{
+						stackNode[top] = far; stackMin[top] = tSplit; stackMax[top] = tMax; top++;
+						node = near;
+						tMax = tSplit;
+					}
+				}
+				for(int i = child[node]; i < child[node] + primCount[node]; i++){
+					int face = prims[i];
+					if(face == skipFace) continue;
+					if(!BSimMeshUtils.intersectVectorTriangle(p1, p2, mesh.getFace(face), candidate)) continue;
+					double t = candidate.getTVal();
+					if(t < tHit) continue;
+					if(best < 0 || t < bestT || (t == bestT && face < best)){
+						best = face;
+						bestT = t;
+						hit.set(candidate);
+						if(any) return best;
+					}
+				}
+			}
+			if(top == 0) return best;
+			top--;
+			node = stackNode[top];
+			tMin = stackMin[top];
+			tMax = stackMax[top];
 		}
-		
-		@Override
-		protected void createMesh() {
-			addVertex(new Vector3d(0,0,0)); // median 1
-			
-			addVertex(new Vector3d(2,-1,-1));
-			addVertex(new Vector3d(2,-1,0)); // m3 rl
-			addVertex(new Vector3d(2,-1,1));
-
-			addVertex(new Vector3d(2,0,0)); // m2 r
-			
-			addVertex(new Vector3d(2,1,-1));
-			addVertex(new Vector3d(2,1,0)); // m3 rr
-			addVertex(new Vector3d(2,1,1));
-
+	}
 
-			addVertex(new Vector3d(-2,-1,-1));
-			addVertex(new Vector3d(-2,-1,0)); // m3 ll
-			addVertex(new Vector3d(-2,-1,1));
+	/**
+	 * Checks the tree against testing every face, over random segments through a sphere mesh.
+	 * Exits with a non-zero status if they disagree.
+	 */
+	public static void main(String[] args){
+		BSimSphereMesh theMesh = new BSimSphereMesh(new Vector3d(50, 50, 50), 30, 4);
+		KdNode tree = new KdNode(theMesh);
+		System.out.println(theMesh.getFaces().size() + " faces, " + tree.getNodeCount() + " nodes, "
+				+ tree.primsUsed + " face references");
 
-			addVertex(new Vector3d(-2,0,0));// m2 l
+		Random rng = new Random(1);
+		int hits = 0, mismatches = 0;
+		for(int k = 0; k < 10000; k++){
+			Vector3d p1 = new Vector3d(100*rng.nextDouble(), 100*rng.nextDouble(), 100*rng.nextDouble());
+			Vector3d p2 = new Vector3d(p1.x + 20*rng.nextGaussian(), p1.y + 20*rng.nextGaussian(), p1.z + 20*rng.nextGaussian());
 
-			addVertex(new Vector3d(-2,1,-1));
-			addVertex(new Vector3d(-2,1,0)); // m3 lr
-			addVertex(new Vector3d(-2,1,1));
+			BSimCollision col = new BSimCollision(), candidate = new BSimCollision();
+			int expected = -1;
+			for(int i = 0; i < theMesh.getFaces().size(); i++){
+				if(BSimMeshUtils.intersectVectorTriangle(p1, p2, theMesh.getFace(i), candidate)
+						&& (expected < 0 || candidate.getTVal() < col.getTVal())){
+					expected = i;
+					col.set(candidate);
+				}
+			}
+			if(expected >= 0) hits++;
+			if(tree.intersectSegment(p1, p2, candidate) != expected || tree.crossesSegment(p1, p2) != (expected >= 0)){
+				mismatches++;
+			}
 		}
+		System.out.println(hits + " hits, " + mismatches + " mismatches");
+		if(mismatches > 0) System.exit(1);
 	}
-		
-	
-	/**
-	 * Class that holds a triplet of doubles and its original index.
-	 * Thus we can sort by value then refer back to the original object, 
-	 * without rearranging order of original data.
-	 */
-    class Indexed3d{
-    	double[] val;
-    	int originalIndex;
-    	
-    	public Indexed3d(){
-    		val = new double[3];
-    		originalIndex = -1;
-    	}
-    	
-    	public Indexed3d(double[] newVal, int newIndex) {
-    		this();
-    		val = newVal.clone();
-    		originalIndex = newIndex;
-		}
-    	
-    	public Indexed3d(Indexed3d id) {
-    		this(id.val, id.originalIndex);
-		}
-    	
-    	public void set(Indexed3d id){
-    		set(id.val, id.originalIndex);
-    	}
-    	
-    	public void set(double[] newVal, int newIndex){
-    		val = newVal.clone();
-    		originalIndex = newIndex;
-    	}
-    }
 }
@@ -159,4 +159,114 @@ public class RectangleIntersection {
                 new Vector2d(cx + -dxcos - dysin, cy + -dxsin + dycos)};
         return rectangle;
     }
+
+    /*
+     * Allocation-free versions of rectangle_vertices() and rectangle_intersection_perimeter(), with the same
+     * arithmetic. Points are stored flat, as x0, y0, x1, y1, ...
+     */
+
+    /**
+     * Clipping a convex polygon against a line adds at most one vertex,
+     * so clipping a rectangle against the four edges of another gives at most 8.
+     */
+    public static final int MAX_CLIPPED_VERTICES = 8;
+    /** Length of the scratch array needed by rectangle_intersection_perimeter(double[], double[], double[]). */
+    public static final int CLIP_SCRATCH_LENGTH = 5 * MAX_CLIPPED_VERTICES;
+
+    public static void rectangle_vertices(double cx, double cy, double w, double h, double angle, double[] rectangle) {
+        double dx = w / 2;
+        double dy = h / 2;
+        double dxcos = dx * Math.cos(angle);
+        double dxsin = dx * Math.sin(angle);
+        double dycos = dy * Math.cos(angle);
+        double dysin = dy * Math.sin(angle);
+        rectangle[0] = cx + -dxcos - -dysin;
+        rectangle[1] = cy + -dxsin + -dycos;
+        rectangle[2] = cx + dxcos - -dysin;
+        rectangle[3] = cy + dxsin + -dycos;
+        rectangle[4] = cx + dxcos - dysin;
+        rectangle[5] = cy + dxsin + dycos;
+        rectangle[6] = cx + -dxcos - dysin;
+        rectangle[7] = cy + -dxsin + dycos;
+    }
+
+    /**
+     * Perimeter of the intersection of two rectangles, each given as 4 vertices (8 doubles);
+     * scratch must be at least CLIP_SCRATCH_LENGTH long.
+     */
+    public static double rectangle_intersection_perimeter(double[] r_1, double[] r_2, double[] scratch) {
+        // The intersection polygon and the clipped polygon, 2 * MAX_CLIPPED_VERTICES each, then the line values.
+        int intersection = 0;
+        int new_intersection = 2 * MAX_CLIPPED_VERTICES;
+        int line_values = 4 * MAX_CLIPPED_VERTICES;
+
+        // Use the vertices of the first rectangle as the starting vertices of the intersection polygon.
+        System.arraycopy(r_1, 0, scratch, intersection, 8);
+        int intersection_length = 4;
+
+        // Loop over the edges of the second rectangle
+        for (int i = 0; i < 4; i++) {
+            if (intersection_length <= 2) {
+                break; // No intersection
+            }
+
+            // a, b, c are constants that determine the equation of the line through r_2[i] and r_2[i + 1]: ax + by + c = 0
+            double v1x = r_2[2 * i];
+            double v1y = r_2[2 * i + 1];
+            double v2x = r_2[(2 * i + 2) % 8];
+            double v2y = r_2[(2 * i + 3) % 8];
+            double a = v2y - v1y;
+            double b = v1x - v2x;
+            double c = v2x * v1y - v2y * v1x;
+
+            for (int j = 0; j < intersection_length; j++) {
+                scratch[line_values + j] = a * scratch[intersection + 2 * j] + b * scratch[intersection + 2 * j + 1] + c;
+            }
+            int new_length = 0;
+            for (int j = 0; j < intersection_length; j++) {
+                int k = (j + 1) % intersection_length;
+                double s_value = scratch[line_values + j];
+                double t_value = scratch[line_values + k];
+                double sx = scratch[intersection + 2 * j];
+                double sy = scratch[intersection + 2 * j + 1];
+
+                if (s_value <= 0) {
+                    scratch[new_intersection + 2 * new_length] = sx;
+                    scratch[new_intersection + 2 * new_length + 1] = sy;
+                    new_length++;
+                }
+                if (s_value * t_value < 0) {
+                    // Points are on opposite sides. Add the intersection of the lines (see line_intersection()).
+                    double tx = scratch[intersection + 2 * k];
+                    double ty = scratch[intersection + 2 * k + 1];
+                    double a2 = ty - sy;
+                    double b2 = sx - tx;
+                    double c2 = tx * sy - ty * sx;
+                    double w = a * b2 - b * a2;
+                    scratch[new_intersection + 2 * new_length] = (b * c2 - c * b2) / w;
+                    scratch[new_intersection + 2 * new_length + 1] = (c * a2 - a * c2) / w;
+                    new_length++;
+                }
+            }
+
+            // set intersection to new intersection
+            int swap = intersection;
+            intersection = new_intersection;
+            new_intersection = swap;
+            intersection_length = new_length;
+        }
+
+        // Calculate perimeter
+        if (intersection_length <= 2) {
+            return 0.0;
+        }
+        int last = intersection + 2 * (intersection_length - 1);
+        double perimeter = Math.sqrt(Math.pow((scratch[intersection] - scratch[last]), 2)
+                + Math.pow((scratch[intersection + 1] - scratch[last + 1]), 2));
+        for (int i = 0; i < intersection_length - 1; i++) {
+            int p = intersection + 2 * i;
+            perimeter += Math.sqrt(Math.pow((scratch[p + 2] - scratch[p]), 2) + Math.pow((scratch[p + 3] - scratch[p + 1]), 2));
+        }
+        return perimeter;
+    }
 }